@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2010 Dan Walkes, Andy Doan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wakemeski.core;
+
+import android.net.Uri;
+
+import com.wakemeski.Log;
+
+/**
+ * Loads the reports for several resorts with a single request to a server
+ * which advertises report.batch.max in server_info.php.
+ *
+ * The request lists the report URL path of each location:
+ * <pre>
+ * /report_batch.php?count=2&amp;loc0=&lt;path 0&gt;&amp;loc1=&lt;path 1&gt;
+ * </pre>
+ * The response contains one block of report key=value lines per location,
+ * framed by the index of the location in the request:
+ * <pre>
+ * report.begin = 0
+ * location = OSOALP
+ * ...
+ * report.end = 0
+ * report.begin = 1
+ * ...
+ * </pre>
+ * Each report is passed to the listener as soon as its block is read, before
+ * the rest of the response arrives.
+ *
+ * When the server supports report deltas, since&lt;index&gt;=&lt;version&gt;
+ * is added for each location with a previous report and its block may hold
+ * only the changes since that version, as described in Report.ReportParser.
+ */
+public class BatchReportLoader {
+
+	public static final String BATCH_URL = "/report_batch.php";
+
+	private static final String KEY_BEGIN = "report.begin";
+	private static final String KEY_END = "report.end";
+
+	/**
+	 * Receives each report as its block of the batch response completes
+	 */
+	public interface Listener {
+		/**
+		 * @param index index of the resort in the list passed to load()
+		 * @param r report for the resort
+		 */
+		void onReportLoaded(int index, Report r);
+	}
+
+	private final WakeMeSkiServer mServer;
+	private final WakeMeSkiServerInfo mServerInfo;
+
+	/**
+	 * @param serverInfo info of server, already fetched to find its
+	 * report.batch.max
+	 */
+	public BatchReportLoader(WakeMeSkiServer server, WakeMeSkiServerInfo serverInfo) {
+		mServer = server;
+		mServerInfo = serverInfo;
+	}
+
+	/**
+	 * @return the URL (relative to the server) used to request reports for resorts
+	 */
+	private String getBatchUrl(Resort[] resorts, Report[] previous) {
+		StringBuffer sb = new StringBuffer(BATCH_URL);
+		sb.append("?count=").append(resorts.length);
+		for (int i = 0; i < resorts.length; i++) {
+			sb.append("&loc").append(i).append('=')
+				.append(Uri.encode(resorts[i].getLocation().getReportUrlPath()));
+			String since = previous == null ? null : Report.getDeltaBase(previous[i], mServerInfo);
+			if (since != null) {
+				sb.append("&since").append(i).append('=').append(Uri.encode(since));
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the value of a report.begin or report.end line or -1 if the
+	 * line does not have a valid index
+	 */
+	private static int getIndex(String line, int count) {
+		String vals[] = line.split("=", 2);
+		int index = -1;
+		if (vals.length == 2) {
+			try {
+				index = Integer.parseInt(vals[1].trim());
+			} catch (NumberFormatException nfe) {
+				index = -1;
+			}
+		}
+		if (index >= count) {
+			index = -1;
+		}
+		return index;
+	}
+
+	/**
+	 * Requests reports for all resorts in one call to the server
+	 * @param resorts resorts to load, at most the server's report.batch.max
+	 * @param listener receives each report as it is read
+	 * @return an array with true at each index whose report was passed to
+	 * listener.  Resorts which were not loaded (because the server omitted them
+	 * or the request failed part way) should be requested individually.
+	 */
+	public boolean[] load(Resort[] resorts, Listener listener) {
+		return load(resorts, null, listener, 0);
+	}
+
+	/**
+	 * Requests reports for all resorts in one call to the server
+	 * @param timeoutMs connect and read timeout in milliseconds, 0 for the
+	 * default timeouts
+	 * @see #load(Resort[], Listener)
+	 */
+	public boolean[] load(Resort[] resorts, Listener listener, int timeoutMs) {
+		return load(resorts, null, listener, timeoutMs);
+	}
+
+	/**
+	 * Requests reports for all resorts in one call to the server, asking only
+	 * for the changes since the previous reports
+	 * @param previous the last report loaded for each resort (or null entries),
+	 * or null to request full reports.  Resorts whose changes are not against
+	 * their previous report are not loaded.
+	 * @param timeoutMs connect and read timeout in milliseconds, 0 for the
+	 * default timeouts
+	 * @see #load(Resort[], Listener)
+	 */
+	public boolean[] load(final Resort[] resorts, final Report[] previous,
+			final Listener listener, int timeoutMs) {
+		final boolean loaded[] = new boolean[resorts.length];
+
+		HttpUtils.LineListener lineListener = new HttpUtils.LineListener() {
+			private Report.ReportParser mParser = null;
+			private int mIndex = -1;
+
+			@Override
+			public void onLine(String line) {
+				String key = line.trim();
+				if (key.startsWith(KEY_BEGIN)) {
+					mIndex = getIndex(line, resorts.length);
+					mParser = null;
+					if (mIndex >= 0) {
+						Location l = resorts[mIndex].getLocation();
+						mParser = new Report.ReportParser(resorts[mIndex],
+								mServer.getFetchUrl("/" + l.getReportUrlPath()),
+								previous == null ? null : previous[mIndex]);
+					} else {
+						Log.e("Invalid batch report begin line: " + line);
+					}
+				} else if (key.startsWith(KEY_END)) {
+					if (mParser != null && getIndex(line, resorts.length) == mIndex) {
+						Report r = mParser.finish(mServerInfo);
+						if (r != null) {
+							loaded[mIndex] = true;
+							listener.onReportLoaded(mIndex, r);
+						} else {
+							Log.i("Batch report delta for " + resorts[mIndex]
+									+ " was not against the previous report");
+						}
+					} else {
+						Log.e("Unmatched batch report end line: " + line);
+					}
+					mParser = null;
+				} else if (mParser != null) {
+					mParser.parseLine(line);
+				} else if (key.length() != 0) {
+					Log.i("Line outside of report block in batch response: " + line);
+				}
+			}
+		};
+
+		try {
+			mServer.fetchUrlWithID(getBatchUrl(resorts, previous), lineListener, timeoutMs);
+		} catch (Exception e) {
+			Log.w("Batch report request failed, falling back to individual requests", e);
+		}
+		return loaded;
+	}
+
+	/**
+	 * Requests reports for any number of resorts with batch requests of up to
+	 * batchMax resorts each.  Stops at the first batch which loads no reports,
+	 * since the server then most likely can't answer batch requests.
+	 * @param previous the last report loaded for each resort (or null entries),
+	 * or null to request full reports
+	 * @param batchMax the server's report.batch.max, no requests are made if
+	 * it is 1 or less
+	 * @param listener receives each report with its index in resorts
+	 * @param deadline time limit for all of the batch requests, or null for none
+	 * @return an array with true at each index whose report was passed to
+	 * listener.  Resorts which were not loaded should be requested individually.
+	 */
+	public boolean[] loadInBatches(Resort[] resorts, Report[] previous, int batchMax,
+			final Listener listener, Deadline deadline) {
+		boolean loaded[] = new boolean[resorts.length];
+		if (batchMax <= 1) {
+			return loaded;
+		}
+		for (int start = 0; start < resorts.length; start += batchMax) {
+			int timeoutMs = 0;
+			if (deadline != null) {
+				if (deadline.isExpired()) {
+					break;
+				}
+				int batches = (resorts.length - start + batchMax - 1) / batchMax;
+				timeoutMs = deadline.getRequestTimeoutMs(batches, 1);
+			}
+			final int offset = start;
+			Resort batch[] = new Resort[Math.min(batchMax, resorts.length - start)];
+			System.arraycopy(resorts, start, batch, 0, batch.length);
+			Report batchPrevious[] = null;
+			if (previous != null) {
+				batchPrevious = new Report[batch.length];
+				System.arraycopy(previous, start, batchPrevious, 0, batch.length);
+			}
+			boolean batchLoaded[] = load(batch, batchPrevious, new Listener() {
+				@Override
+				public void onReportLoaded(int index, Report r) {
+					listener.onReportLoaded(offset + index, r);
+				}
+			}, timeoutMs);
+			boolean anyLoaded = false;
+			for (int i = 0; i < batchLoaded.length; i++) {
+				loaded[start + i] = batchLoaded[i];
+				anyLoaded |= batchLoaded[i];
+			}
+			if (!anyLoaded) {
+				Log.w("Batch request returned no reports, loading remaining resorts individually");
+				break;
+			}
+		}
+		return loaded;
+	}
+}
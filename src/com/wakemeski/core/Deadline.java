@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2010 Dan Walkes, Andy Doan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wakemeski.core;
+
+import android.os.SystemClock;
+
+/**
+ * A total time budget for a report load.  Each request made under the deadline
+ * is given a share of the time which remains so a single slow server can't use
+ * up the whole budget.
+ *
+ * Time is measured with SystemClock.elapsedRealtime() so the deadline is not
+ * affected by changes to the wall clock or by the device sleeping.
+ */
+public class Deadline {
+
+	/**
+	 * Shortest timeout given to a request while time remains, so requests late
+	 * in a load still have a chance to complete
+	 */
+	public static final int MIN_REQUEST_TIMEOUT_MS = 2000;
+
+	private final long mBudgetMs;
+	private final long mExpiresAt;
+
+	/**
+	 * @param budgetMs total time allowed from now, in milliseconds
+	 */
+	public Deadline(long budgetMs) {
+		mBudgetMs = budgetMs;
+		mExpiresAt = SystemClock.elapsedRealtime() + budgetMs;
+	}
+
+	/**
+	 * @return the total budget this deadline was created with
+	 */
+	public long getBudgetMs() {
+		return mBudgetMs;
+	}
+
+	/**
+	 * @return milliseconds until the deadline, 0 once it has passed
+	 */
+	public long remainingMs() {
+		return Math.max(0, mExpiresAt - SystemClock.elapsedRealtime());
+	}
+
+	public boolean isExpired() {
+		return remainingMs() == 0;
+	}
+
+	/**
+	 * Splits the remaining time between the requests still to be made.
+	 * @param pendingRequests requests not yet completed, including this one
+	 * @param concurrency number of requests made at the same time
+	 * @return the connect and read timeout for the next request.  Never 0, since
+	 * HttpUtils treats 0 as the default timeout.
+	 */
+	public int getRequestTimeoutMs(int pendingRequests, int concurrency) {
+		long remaining = remainingMs();
+		int rounds = Math.max(1,
+				(pendingRequests + Math.max(1, concurrency) - 1) / Math.max(1, concurrency));
+		long timeout = Math.max(MIN_REQUEST_TIMEOUT_MS, remaining / rounds);
+		timeout = Math.min(timeout, remaining);
+		return (int)Math.max(1, Math.min(timeout, Integer.MAX_VALUE));
+	}
+
+	@Override
+	public String toString() {
+		return "deadline " + remainingMs() + "/" + mBudgetMs + "ms remaining";
+	}
+}
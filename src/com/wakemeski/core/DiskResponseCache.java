@@ -0,0 +1,472 @@
+/*
+ * Copyright (C) 2010 Dan Walkes, Andy Doan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wakemeski.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+
+import com.wakemeski.Log;
+
+/**
+ * A response cache kept in files under the application cache directory so
+ * responses survive process restarts.
+ *
+ * A response younger than the time to live of its endpoint is used without
+ * contacting the server.  Older responses are revalidated with a conditional
+ * GET when the server sent an ETag or Last-Modified header, otherwise they are
+ * downloaded again.
+ *
+ * Cache keys are the request URL without the per device id parameter added by
+ * WakeMeSkiServer.fetchWithID().  Once the files total more than the size
+ * budget the least recently used responses are deleted.
+ *
+ * An explicit refresh should use getRevalidatingView() so every response is
+ * at least revalidated with the server.
+ */
+public class DiskResponseCache implements RevalidationCache {
+
+	/**
+	 * Default limit on the total size of cached responses
+	 */
+	public static final long DEFAULT_MAX_BYTES = 512 * 1024;
+
+	/**
+	 * Time to live of the region and location lists, which rarely change
+	 */
+	public static final long LOCATION_FINDER_TTL_MS = 24 * 60 * 60 * 1000;
+
+	/**
+	 * Time to live of server_info.php
+	 */
+	public static final long SERVER_INFO_TTL_MS = 60 * 60 * 1000;
+
+	/**
+	 * Time to live of reports and any other endpoint without its own TTL
+	 */
+	public static final long DEFAULT_TTL_MS = 10 * 60 * 1000;
+
+	private static final String CACHE_DIR = "http";
+	private static final String FILE_SUFFIX = ".dat";
+
+	private static DiskResponseCache mInstance = null;
+
+	private final File mDir;
+	private final long mMaxBytes;
+	private long mSizeBytes = 0;
+	private boolean mLoaded = false;
+
+	/*
+	 * Cache key to file holding the response, in least recently used order
+	 */
+	private final LinkedHashMap<String, File> mIndex =
+		new LinkedHashMap<String, File>(16, 0.75f, true);
+
+	/*
+	 * Endpoint path to time to live, see getTtlMs()
+	 */
+	private final LinkedHashMap<String, Long> mTtls = new LinkedHashMap<String, Long>();
+
+	private int mCacheHits = 0;
+	private int mCacheMisses = 0;
+	private int mNotModified = 0;
+	private int mModified = 0;
+	private int mEvictions = 0;
+
+	/*
+	 * This cache without its fresh responses, see getRevalidatingView()
+	 */
+	private final RevalidationCache mRevalidatingView = new RevalidationCache() {
+		@Override
+		public Entry get(String url) {
+			return DiskResponseCache.this.get(url);
+		}
+
+		@Override
+		public Entry getFresh(String url) {
+			return null;
+		}
+
+		@Override
+		public void markRevalidated(String url) {
+			DiskResponseCache.this.markRevalidated(url);
+		}
+
+		@Override
+		public void put(String url, String etag, String lastModified, String[] lines) {
+			DiskResponseCache.this.put(url, etag, lastModified, lines);
+		}
+
+		@Override
+		public void recordRevalidation(boolean notModified) {
+			DiskResponseCache.this.recordRevalidation(notModified);
+		}
+
+		@Override
+		public void clear() {
+			DiskResponseCache.this.clear();
+		}
+	};
+
+	/**
+	 * @param c context
+	 * @return the process wide response cache
+	 */
+	public static synchronized DiskResponseCache getInstance(Context c) {
+		if (mInstance == null) {
+			mInstance = new DiskResponseCache(new File(c.getCacheDir(), CACHE_DIR),
+					DEFAULT_MAX_BYTES);
+		}
+		return mInstance;
+	}
+
+	/**
+	 * @param dir directory to hold the cached responses
+	 * @param maxBytes limit on the total size of the cached responses
+	 */
+	public DiskResponseCache(File dir, long maxBytes) {
+		mDir = dir;
+		mMaxBytes = maxBytes;
+		setTtlMs("/location_finder.php", LOCATION_FINDER_TTL_MS);
+		setTtlMs("/server_info.php", SERVER_INFO_TTL_MS);
+	}
+
+	/**
+	 * Sets the time to live of responses from URLs containing endpoint
+	 * @param endpoint path of the endpoint, for instance "/server_info.php"
+	 */
+	public synchronized void setTtlMs(String endpoint, long ttlMs) {
+		mTtls.put(endpoint, ttlMs);
+	}
+
+	/**
+	 * @return the time to live of the response for key
+	 */
+	private long getTtlMs(String key) {
+		for (Map.Entry<String, Long> ttl : mTtls.entrySet()) {
+			if (key.indexOf(ttl.getKey()) >= 0) {
+				return ttl.getValue();
+			}
+		}
+		return DEFAULT_TTL_MS;
+	}
+
+	/**
+	 * @return a view of this cache which never uses a response without asking
+	 * the server, for loads the user asked for explicitly.  Responses are still
+	 * revalidated with a conditional GET and stored in this cache.
+	 */
+	public RevalidationCache getRevalidatingView() {
+		return mRevalidatingView;
+	}
+
+	/**
+	 * @return url without the id query parameter, so responses are shared no
+	 * matter which device id was sent
+	 */
+	static String getCacheKey(String url) {
+		int query = url.indexOf('?');
+		if (query < 0) {
+			return url;
+		}
+		StringBuffer key = new StringBuffer(url.length());
+		key.append(url, 0, query);
+		char separator = '?';
+		for (String param : url.substring(query + 1).split("&")) {
+			if (param.length() == 0 || param.startsWith("id=")) {
+				continue;
+			}
+			key.append(separator).append(param);
+			separator = '&';
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Builds the index of cached responses from the files in the cache
+	 * directory, oldest first
+	 */
+	private void ensureLoaded() {
+		if (mLoaded) {
+			return;
+		}
+		mLoaded = true;
+		if (!mDir.isDirectory() && !mDir.mkdirs()) {
+			Log.w("Unable to create response cache directory " + mDir);
+			return;
+		}
+		File files[] = mDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				long m1 = f1.lastModified();
+				long m2 = f2.lastModified();
+				return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+			}
+		});
+		for (File f : files) {
+			if (!f.getName().endsWith(FILE_SUFFIX)) {
+				/*
+				 * Left over from an interrupted write
+				 */
+				f.delete();
+				continue;
+			}
+			String key = readKey(f);
+			if (key == null) {
+				f.delete();
+			} else {
+				mIndex.put(key, f);
+				mSizeBytes += f.length();
+			}
+		}
+		Log.d("Response cache holds " + mIndex.size() + " responses in " + mSizeBytes + " bytes");
+		evict();
+	}
+
+	/**
+	 * @return the file used to hold the response for key
+	 */
+	private File getFile(String key) {
+		return new File(mDir, Integer.toHexString(key.hashCode()) + FILE_SUFFIX);
+	}
+
+	private static String readKey(File f) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			return in.readUTF();
+		} catch (IOException ioe) {
+			Log.w("Unable to read cached response " + f, ioe);
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	/**
+	 * @return the entry held in f for key or null if it can't be read
+	 */
+	private static Entry readEntry(File f, String key) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			if (!key.equals(in.readUTF())) {
+				return null;
+			}
+			String etag = in.readUTF();
+			String lastModified = in.readUTF();
+			String lines[] = new String[in.readInt()];
+			for (int i = 0; i < lines.length; i++) {
+				lines[i] = in.readUTF();
+			}
+			/*
+			 * The file time is when the response was stored or last revalidated
+			 */
+			return new Entry(etag.length() == 0 ? null : etag,
+					lastModified.length() == 0 ? null : lastModified, lines, f.lastModified());
+		} catch (IOException ioe) {
+			Log.w("Unable to read cached response " + f, ioe);
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	private static void close(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException ioe) {
+				Log.w("IO exception closing cached response", ioe);
+			}
+		}
+	}
+
+	/**
+	 * @return the entry for key, removing it from the cache if its file can't be read
+	 */
+	private Entry load(String key) {
+		File f = mIndex.get(key);
+		if (f == null) {
+			return null;
+		}
+		Entry e = readEntry(f, key);
+		if (e == null) {
+			remove(key);
+		}
+		return e;
+	}
+
+	private void remove(String key) {
+		File f = mIndex.remove(key);
+		if (f != null) {
+			mSizeBytes -= f.length();
+			f.delete();
+		}
+	}
+
+	/**
+	 * Deletes least recently used responses until the cache fits its size budget
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, File>> it = mIndex.entrySet().iterator();
+		while (mSizeBytes > mMaxBytes && it.hasNext()) {
+			File f = it.next().getValue();
+			it.remove();
+			mSizeBytes -= f.length();
+			f.delete();
+			mEvictions++;
+		}
+	}
+
+	@Override
+	public synchronized Entry getFresh(String url) {
+		ensureLoaded();
+		String key = getCacheKey(url);
+		File f = mIndex.get(key);
+		Entry e = null;
+		if (f != null) {
+			long age = System.currentTimeMillis() - f.lastModified();
+			if (age >= 0 && age < getTtlMs(key)) {
+				e = load(key);
+			}
+		}
+		if (e == null) {
+			mCacheMisses++;
+		} else {
+			mCacheHits++;
+		}
+		return e;
+	}
+
+	@Override
+	public synchronized Entry get(String url) {
+		ensureLoaded();
+		return load(getCacheKey(url));
+	}
+
+	/**
+	 * Restarts the time to live of the response for url
+	 */
+	@Override
+	public synchronized void markRevalidated(String url) {
+		File f = mIndex.get(getCacheKey(url));
+		if (f != null && !f.setLastModified(System.currentTimeMillis())) {
+			Log.w("Unable to update time of cached response " + f);
+		}
+	}
+
+	/**
+	 * Stores the response for url, whether or not the server sent validators
+	 */
+	@Override
+	public synchronized void put(String url, String etag, String lastModified, String[] lines) {
+		ensureLoaded();
+		String key = getCacheKey(url);
+		remove(key);
+		File f = getFile(key);
+		/*
+		 * A different key whose hash matches is replaced
+		 */
+		ArrayList<String> collisions = new ArrayList<String>();
+		for (Map.Entry<String, File> entry : mIndex.entrySet()) {
+			if (entry.getValue().equals(f)) {
+				collisions.add(entry.getKey());
+			}
+		}
+		for (String collision : collisions) {
+			remove(collision);
+		}
+
+		File tmp = new File(mDir, f.getName() + ".tmp");
+		DataOutputStream out = null;
+		boolean written = false;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeUTF(key);
+			out.writeUTF(etag == null ? "" : etag);
+			out.writeUTF(lastModified == null ? "" : lastModified);
+			out.writeInt(lines.length);
+			for (String line : lines) {
+				out.writeUTF(line);
+			}
+			out.close();
+			out = null;
+			written = tmp.renameTo(f);
+		} catch (IOException ioe) {
+			Log.w("Unable to write cached response for " + key, ioe);
+		} finally {
+			close(out);
+			if (!written) {
+				tmp.delete();
+			}
+		}
+		if (written) {
+			mIndex.put(key, f);
+			mSizeBytes += f.length();
+			evict();
+		}
+	}
+
+	@Override
+	public synchronized void clear() {
+		ensureLoaded();
+		for (File f : mIndex.values()) {
+			f.delete();
+		}
+		mIndex.clear();
+		mSizeBytes = 0;
+	}
+
+	@Override
+	public synchronized void recordRevalidation(boolean notModified) {
+		if (notModified) {
+			mNotModified++;
+		} else {
+			mModified++;
+		}
+	}
+
+	/**
+	 * @return counts of lookups answered from the cache (hits), sent to the
+	 * server (misses), conditional requests answered with 304 Not Modified
+	 * or a new body, evicted responses and the cache size, for the report
+	 * load log
+	 */
+	public synchronized String getStats() {
+		return "hits=" + mCacheHits + " misses=" + mCacheMisses +
+			" notModified=" + mNotModified + " modified=" + mModified +
+			" evictions=" + mEvictions + " size=" + mSizeBytes + "B";
+	}
+}
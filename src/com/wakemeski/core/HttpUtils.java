@@ -27,20 +27,214 @@
 package com.wakemeski.core;
 
 import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import com.wakemeski.Log;
 
 public class HttpUtils {
 
-	static HttpClient getHttpClient() {
-		return new DefaultHttpClient();
+	/**
+	 * Receives the lines of a response as they are read from the network
+	 */
+	public interface LineListener {
+		/**
+		 * Called for each line of the response, in order
+		 * @throws IOException to stop reading the response
+		 */
+		void onLine(String line) throws IOException;
+	}
+
+	/**
+	 * A LineListener which needs to know when the lines it receives come from
+	 * a cached response instead of the network
+	 */
+	public interface CachedLineListener extends LineListener {
+		/**
+		 * Called before the first line of a response served from the cache
+		 * without contacting the server
+		 * @param timeMs System.currentTimeMillis() time the cached response was
+		 * fetched from or last confirmed by the server
+		 */
+		void onCachedResponse(long timeMs);
+	}
+
+	/**
+	 * Receives each key = value pair of a response as it is read from the network
+	 */
+	public interface KeyValueListener {
+		/**
+		 * @param key text before the first '=' with whitespace trimmed
+		 * @param value text after the first '=' with whitespace trimmed
+		 * @throws IOException to stop reading the response
+		 */
+		void onKeyValue(String key, String value) throws IOException;
+	}
+
+	/**
+	 * Splits each line of a response at the first '=' and passes the key and
+	 * value to a KeyValueListener.  Lines without an '=' are skipped.
+	 */
+	public static class KeyValueLineListener implements LineListener {
+		private final KeyValueListener mListener;
+
+		public KeyValueLineListener(KeyValueListener listener) {
+			mListener = listener;
+		}
+
+		@Override
+		public void onLine(String line) throws IOException {
+			int eq = line.indexOf('=');
+			if (eq < 0) {
+				if (line.trim().length() != 0) {
+					Log.d("Skipping line without key=value: " + line);
+				}
+				return;
+			}
+			mListener.onKeyValue(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+		}
+	}
+
+	/**
+	 * Maximum number of pooled connections to any single server
+	 */
+	static final int MAX_CONNECTIONS_PER_HOST = 4;
+
+	/**
+	 * Maximum number of pooled connections across all servers
+	 */
+	private static final int MAX_TOTAL_CONNECTIONS = 8;
+
+	/**
+	 * Pooled connections which have not been used for this long are closed
+	 * before the next request is issued
+	 */
+	private static final long IDLE_CONNECTION_TIMEOUT_SEC = 30;
+
+	/**
+	 * Connect and read timeouts used when the caller does not specify one,
+	 * so a server which stops responding can't hang a fetch forever
+	 */
+	private static final int DEFAULT_CONNECT_TIMEOUT_MS = 20 * 1000;
+	private static final int DEFAULT_READ_TIMEOUT_MS = 30 * 1000;
+
+	private static DefaultHttpClient mHttpClient = null;
+
+	/*
+	 * Total bytes received on the wire (before decompression) and total
+	 * bytes after decompression for all fetches in this process
+	 */
+	private static final AtomicLong mReceivedBytes = new AtomicLong();
+	private static final AtomicLong mDecodedBytes = new AtomicLong();
+
+	/**
+	 * @return the process wide http client.  The client keeps a pool of
+	 * keep-alive connections so back to back requests to the same server
+	 * (one per resort on a report load) don't each pay for a new TCP connect
+	 * and DNS lookup.
+	 */
+	static synchronized HttpClient getHttpClient() {
+		if( mHttpClient == null ) {
+			HttpParams params = new BasicHttpParams();
+			HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+			/*
+			 * The server may close a keep-alive connection while it sits in the
+			 * pool, check before re-using it
+			 */
+			HttpConnectionParams.setStaleCheckingEnabled(params, true);
+			HttpConnectionParams.setConnectionTimeout(params, DEFAULT_CONNECT_TIMEOUT_MS);
+			HttpConnectionParams.setSoTimeout(params, DEFAULT_READ_TIMEOUT_MS);
+			ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+			ConnManagerParams.setMaxConnectionsPerRoute(params,
+					new ConnPerRouteBean(MAX_CONNECTIONS_PER_HOST));
+			/*
+			 * Waiting for a connection from a full pool counts against the same
+			 * budget as connecting
+			 */
+			ConnManagerParams.setTimeout(params, DEFAULT_CONNECT_TIMEOUT_MS);
+
+			SchemeRegistry registry = new SchemeRegistry();
+			registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+
+			ClientConnectionManager cm = new ThreadSafeClientConnManager(params, registry);
+			mHttpClient = new DefaultHttpClient(cm, params);
+		}
+		return mHttpClient;
+	}
+
+	/**
+	 * Close any pooled connections which have expired or have been idle longer
+	 * than IDLE_CONNECTION_TIMEOUT_SEC
+	 */
+	private static void evictIdleConnections(HttpClient client) {
+		ClientConnectionManager cm = client.getConnectionManager();
+		cm.closeExpiredConnections();
+		cm.closeIdleConnections(IDLE_CONNECTION_TIMEOUT_SEC, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return the number of response body bytes received over the network by
+	 * all fetches, as sent by the server (compressed when the server supports it)
+	 */
+	public static long getReceivedBytes() {
+		return mReceivedBytes.get();
+	}
+
+	/**
+	 * @return the number of response body bytes after decompression for all fetches
+	 */
+	public static long getDecodedBytes() {
+		return mDecodedBytes.get();
+	}
+
+	/**
+	 * Wraps the entity content in a decompressing stream based on the
+	 * Content-Encoding header returned by the server.
+	 * @param entity response entity
+	 * @param received counts bytes as received from the server
+	 * @return a stream of decoded content
+	 */
+	private static InputStream getDecodedContent(HttpEntity entity, CountingInputStream received)
+		throws IOException {
+		Header encoding = entity.getContentEncoding();
+		if (encoding != null) {
+			String value = encoding.getValue();
+			if (value.equalsIgnoreCase("gzip")) {
+				return new GZIPInputStream(received);
+			} else if (value.equalsIgnoreCase("deflate")) {
+				return new InflaterInputStream(received);
+			}
+		}
+		return received;
 	}
 
 	/**
@@ -48,30 +242,259 @@ public class HttpUtils {
 	 */
 	public static String[] fetchUrl(String url)
 		throws ClientProtocolException, IOException {
-		ArrayList<String> lines = new ArrayList<String>();
+		return fetchUrl(url, (RevalidationCache)null);
+	}
+
+	/**
+	 * Returns the contents of the given URL as an array of strings, failing
+	 * if the server can't be reached or stops responding within timeoutMs
+	 * @param url URL to fetch
+	 * @param timeoutMs connect and read timeout in milliseconds, 0 for the default timeouts
+	 */
+	public static String[] fetchUrl(String url, int timeoutMs)
+		throws ClientProtocolException, IOException {
+		return fetchUrl(url, null, timeoutMs);
+	}
 
+	/**
+	 * @return the value of the named header in the response or null if not present
+	 */
+	private static String getHeaderValue(HttpResponse resp, String name) {
+		Header h = resp.getFirstHeader(name);
+		return h == null ? null : h.getValue();
+	}
+
+	/**
+	 * Returns the contents of the given URL as an array of strings, revalidating
+	 * any previous response held in cache with a conditional GET
+	 * @param url URL to fetch
+	 * @param cache cache of previous responses, or null to always download the
+	 * full response
+	 */
+	public static String[] fetchUrl(String url, RevalidationCache cache)
+		throws ClientProtocolException, IOException {
+		return fetchUrl(url, cache, 0);
+	}
+
+	/**
+	 * Same as fetchUrl(String, RevalidationCache) but fails if the server can't
+	 * be reached or stops responding within timeoutMs
+	 * @param timeoutMs connect and read timeout in milliseconds, 0 for the
+	 * default timeouts
+	 */
+	public static String[] fetchUrl(String url, RevalidationCache cache, int timeoutMs)
+		throws ClientProtocolException, IOException {
+		final ArrayList<String> lines = new ArrayList<String>();
+		fetchUrl(url, cache, new LineListener() {
+			@Override
+			public void onLine(String line) {
+				lines.add(line);
+			}
+		}, timeoutMs);
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	/**
+	 * Fetches the given URL, passing each line of the response to listener
+	 * as it is read from the network
+	 * @param url URL to fetch
+	 * @param listener receives each line of the response
+	 */
+	public static void fetchUrl(String url, LineListener listener)
+		throws ClientProtocolException, IOException {
+		fetchUrl(url, null, listener);
+	}
+
+	/**
+	 * Fetches the given URL, passing each line of the response to listener
+	 * as it is read from the network and revalidating any previous response
+	 * held in cache with a conditional GET.  When the server reports the
+	 * cached response has not been modified the cached lines are passed to
+	 * listener instead.
+	 * @param url URL to fetch
+	 * @param cache cache of previous responses, or null to always download the
+	 * full response
+	 * @param listener receives each line of the response
+	 */
+	public static void fetchUrl(String url, RevalidationCache cache, LineListener listener)
+		throws ClientProtocolException, IOException {
+		fetchUrl(url, cache, listener, 0);
+	}
+
+	/**
+	 * Same as fetchUrl(String, RevalidationCache, LineListener) but fails if the
+	 * server can't be reached or stops responding within timeoutMs.  If cache
+	 * holds a response which is still fresh it is passed to listener without
+	 * contacting the server.
+	 * @param timeoutMs connect and read timeout in milliseconds, 0 for the default timeouts
+	 * @return true if the server was contacted, false if a fresh cached response
+	 * was used
+	 */
+	public static boolean fetchUrl(String url, RevalidationCache cache, LineListener listener,
+			int timeoutMs)
+		throws ClientProtocolException, IOException {
 		url = url.replace(" ", "%20");
 
-		HttpResponse resp = getHttpClient().execute(new HttpGet(url));
-		if (resp.getStatusLine().getStatusCode() == 200) {
-			InputStreamReader ir = new InputStreamReader(resp.getEntity()
-					.getContent());
+		ArrayList<String> lines = null;
+		if (cache != null) {
+			RevalidationCache.Entry fresh = cache.getFresh(url);
+			if (fresh != null) {
+				Log.d("Using cached response for " + url);
+				if (listener instanceof CachedLineListener && fresh.getTimeMs() > 0) {
+					((CachedLineListener) listener).onCachedResponse(fresh.getTimeMs());
+				}
+				for (String line : fresh.getLines()) {
+					listener.onLine(line);
+				}
+				return false;
+			}
+			lines = new ArrayList<String>();
+		}
+
+		HttpClient client = getHttpClient();
+		evictIdleConnections(client);
+
+		HttpGet get = new HttpGet(url);
+		/*
+		 * Our key=value responses compress very well, ask for compressed content
+		 */
+		get.addHeader("Accept-Encoding", "gzip, deflate");
+		if (timeoutMs > 0) {
+			ConnManagerParams.setTimeout(get.getParams(), timeoutMs);
+			HttpConnectionParams.setConnectionTimeout(get.getParams(), timeoutMs);
+			HttpConnectionParams.setSoTimeout(get.getParams(), timeoutMs);
+		}
+
+		RevalidationCache.Entry cached = null;
+		if (cache != null) {
+			cached = cache.get(url);
+			if (cached != null) {
+				if (cached.getETag() != null) {
+					get.addHeader("If-None-Match", cached.getETag());
+				}
+				if (cached.getLastModified() != null) {
+					get.addHeader("If-Modified-Since", cached.getLastModified());
+				}
+			}
+		}
+
+		HttpResponse resp = client.execute(get);
+		HttpEntity entity = resp.getEntity();
+		if (cached != null &&
+				resp.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+			/*
+			 * Nothing changed since the last fetch, re-use the previous body
+			 */
+			if (entity != null) {
+				entity.consumeContent();
+			}
+			cache.recordRevalidation(true);
+			cache.markRevalidated(url);
+			Log.d("Not modified " + url + " using cached response");
+			for (String line : cached.getLines()) {
+				listener.onLine(line);
+			}
+			return true;
+		}
+		if (resp.getStatusLine().getStatusCode() != 200) {
+			/*
+			 * Release the connection back to the pool before failing
+			 */
+			if (entity != null) {
+				entity.consumeContent();
+			}
+			throw new HttpResponseException(resp.getStatusLine().getStatusCode(),
+					"LocationFinder: unable to get URL[" + url + "]");
+		}
+
+		CountingInputStream received = null;
+		CountingInputStream decoded = null;
+		boolean consumed = false;
+		try {
+			received = new CountingInputStream(entity.getContent());
+			decoded = new CountingInputStream(getDecodedContent(entity, received));
+			InputStreamReader ir = new InputStreamReader(decoded);
 			BufferedReader r = new BufferedReader(ir,1024);
 
 			String line;
-			while ((line = r.readLine()) != null)
-				lines.add(line);
-		} else {
-			throw new IOException("LocationFinder: unable to get URL[" + url
-					+ "]");
+			while ((line = r.readLine()) != null) {
+				listener.onLine(line);
+				if (lines != null) {
+					lines.add(line);
+				}
+			}
+			/*
+			 * The entity has been read to the end so the connection
+			 * is already released back to the pool for the next request
+			 */
+			entity.consumeContent();
+			consumed = true;
+		} finally {
+			if (!consumed) {
+				/*
+				 * Don't return a half read connection to the pool, whether
+				 * reading failed or the listener threw
+				 */
+				get.abort();
+			}
+			if (received != null) {
+				mReceivedBytes.addAndGet(received.getCount());
+			}
+			if (decoded != null) {
+				mDecodedBytes.addAndGet(decoded.getCount());
+			}
 		}
+		Log.d("Fetched " + url + " received " + received.getCount() +
+				" bytes decoded to " + decoded.getCount() + " bytes");
 
-		return lines.toArray(new String[lines.size()]);
+		if (cache != null) {
+			if (cached != null) {
+				cache.recordRevalidation(false);
+			}
+			cache.put(url, getHeaderValue(resp, "ETag"),
+					getHeaderValue(resp, "Last-Modified"),
+					lines.toArray(new String[lines.size()]));
+		}
+		return true;
 	}
 
+	/**
+	 * Counts the bytes read through an input stream
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private long mCount = 0;
 
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
 
+		long getCount() {
+			return mCount;
+		}
 
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				mCount++;
+			}
+			return b;
+		}
 
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int n = super.read(buffer, offset, count);
+			if (n > 0) {
+				mCount += n;
+			}
+			return n;
+		}
 
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			mCount += skipped;
+			return skipped;
+		}
+	}
 }
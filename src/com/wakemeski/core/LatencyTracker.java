@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2010 Dan Walkes, Andy Doan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wakemeski.core;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent request latencies for a server and reports
+ * percentiles over them.
+ */
+public class LatencyTracker {
+
+	private final long mSamples[];
+	private int mNext = 0;
+	private int mCount = 0;
+
+	/**
+	 * @param maxSamples number of most recent latencies to keep
+	 */
+	public LatencyTracker(int maxSamples) {
+		mSamples = new long[maxSamples];
+	}
+
+	/**
+	 * Adds a latency, replacing the oldest one once maxSamples have been recorded
+	 */
+	public synchronized void record(long latencyMs) {
+		mSamples[mNext] = latencyMs;
+		mNext = (mNext + 1) % mSamples.length;
+		if (mCount < mSamples.length) {
+			mCount++;
+		}
+	}
+
+	/**
+	 * @return the number of latencies currently held
+	 */
+	public synchronized int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * @param percent percentile between 0 and 100
+	 * @return the latency below which percent of the recorded latencies fall,
+	 * or -1 if nothing has been recorded
+	 */
+	public synchronized long getPercentile(int percent) {
+		if (mCount == 0) {
+			return -1;
+		}
+		long sorted[] = new long[mCount];
+		System.arraycopy(mSamples, 0, sorted, 0, mCount);
+		Arrays.sort(sorted);
+		int index = (int)Math.ceil(percent / 100.0 * mCount) - 1;
+		index = Math.max(0, Math.min(mCount - 1, index));
+		return sorted[index];
+	}
+}
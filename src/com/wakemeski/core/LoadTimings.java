@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2010 Dan Walkes, Andy Doan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wakemeski.core;
+
+import java.util.ArrayList;
+
+import android.os.Debug;
+import android.os.SystemClock;
+
+/**
+ * Records how long each phase of a report load took, in the order the phases
+ * completed, along with the CPU time and memory the load used.
+ */
+public class LoadTimings {
+
+	private final long mStart;
+	private long mPhaseStart;
+	private final ArrayList<String> mPhases = new ArrayList<String>();
+	private final ArrayList<Long> mDurations = new ArrayList<Long>();
+	private int mTimedOut = 0;
+	private long mReceivedBytes = -1;
+	private long mDecodedBytes = -1;
+	private long mCpuNs = 0;
+	private long mAllocatedBytes = -1;
+
+	public LoadTimings() {
+		mStart = SystemClock.elapsedRealtime();
+		mPhaseStart = mStart;
+	}
+
+	/**
+	 * Ends the current phase and starts the next one
+	 * @param name name of the phase which just completed
+	 */
+	public synchronized void endPhase(String name) {
+		long now = SystemClock.elapsedRealtime();
+		mPhases.add(name);
+		mDurations.add(now - mPhaseStart);
+		mPhaseStart = now;
+	}
+
+	/**
+	 * @return the duration of the named phase or -1 if it was not recorded
+	 */
+	public synchronized long getPhaseMs(String name) {
+		int i = mPhases.indexOf(name);
+		return i < 0 ? -1 : mDurations.get(i);
+	}
+
+	/**
+	 * @return the time from creation until the end of the last phase
+	 */
+	public synchronized long getTotalMs() {
+		return mPhaseStart - mStart;
+	}
+
+	/**
+	 * Counts a resort which could not be loaded before the deadline
+	 */
+	public synchronized void addTimedOut() {
+		mTimedOut++;
+	}
+
+	/**
+	 * @return the number of resorts which could not be loaded before the deadline
+	 */
+	public synchronized int getTimedOutCount() {
+		return mTimedOut;
+	}
+
+	/**
+	 * Records the response bytes fetched during the load
+	 * @param receivedBytes bytes received from the network, compressed when
+	 * the server supports it
+	 * @param decodedBytes bytes after decompression
+	 */
+	public synchronized void setBytes(long receivedBytes, long decodedBytes) {
+		mReceivedBytes = receivedBytes;
+		mDecodedBytes = decodedBytes;
+	}
+
+	/**
+	 * Adds the CPU time the calling thread has used since startNs to the load
+	 * @param startNs Debug.threadCpuTimeNanos() when the thread started work
+	 * on the load
+	 */
+	public void addThreadCpuNs(long startNs) {
+		long now = Debug.threadCpuTimeNanos();
+		if (startNs >= 0 && now >= startNs) {
+			synchronized (this) {
+				mCpuNs += now - startNs;
+			}
+		}
+	}
+
+	/**
+	 * @return the CPU time used by the threads of the load
+	 */
+	public synchronized long getCpuNs() {
+		return mCpuNs;
+	}
+
+	/**
+	 * Records the bytes allocated while the load ran
+	 */
+	public synchronized void setAllocatedBytes(long allocatedBytes) {
+		mAllocatedBytes = allocatedBytes;
+	}
+
+	/**
+	 * @return the bytes allocated while the load ran, or -1 if they were not
+	 * counted
+	 */
+	public synchronized long getAllocatedBytes() {
+		return mAllocatedBytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < mPhases.size(); i++) {
+			sb.append(mPhases.get(i)).append('=').append(mDurations.get(i)).append("ms ");
+		}
+		sb.append("total=").append(getTotalMs()).append("ms");
+		if (mTimedOut != 0) {
+			sb.append(" timedOut=").append(mTimedOut);
+		}
+		if (mReceivedBytes >= 0) {
+			sb.append(" received=").append(mReceivedBytes).append("B decoded=")
+				.append(mDecodedBytes).append('B');
+		}
+		sb.append(" cpu=").append(mCpuNs / 1000000).append("ms");
+		if (mAllocatedBytes >= 0) {
+			sb.append(" allocated=").append(mAllocatedBytes).append('B');
+		}
+		return sb.toString();
+	}
+}
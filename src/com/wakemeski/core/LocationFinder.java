@@ -29,6 +29,7 @@ package com.wakemeski.core;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 
 import org.apache.http.client.ClientProtocolException;
 
@@ -50,7 +51,8 @@ public class LocationFinder {
 	 */
 	public String[] getRegions()
 			throws ClientProtocolException, IOException {
-		String [] regions = mServer.fetchUrl("/location_finder.php");
+		String [] regions = mServer.fetchUrl("/location_finder.php",
+				mServer.getResponseCache());
 		Arrays.sort(regions);
 		return regions;
 	}
@@ -58,21 +60,60 @@ public class LocationFinder {
 	/**
 	 * Returns the location objects associated with a given region.
 	 */
-	public Location[] getLocations(String region)
+	public Location[] getLocations(final String region)
 			throws ClientProtocolException, IOException {
-		ArrayList<Location> locations = new ArrayList<Location>();
+		Location locations[] = mServer.fetchWithID("/location_finder.php?region=" + region,
+				mServer.getResponseCache(), 0, new WakeMeSkiServer.ResponseParserFactory<Location[]>() {
+			@Override
+			public WakeMeSkiServer.ResponseParser<Location[]> newParser(String serverUrl) {
+				return new LocationParser(region);
+			}
+
+			@Override
+			public Location[] copy(Location[] result) {
+				return result.clone();
+			}
+		});
+		Arrays.sort(locations, new Comparator<Location>() {
+			@Override
+			public int compare(Location l1, Location l2) {
+				return l1.getLabel().compareTo(l2.getLabel());
+			}
+		});
+		return locations;
+	}
+
+	/**
+	 * Builds a Location from each label = report path line of a region's
+	 * locations as the response is read
+	 */
+	private static class LocationParser implements
+			WakeMeSkiServer.ResponseParser<Location[]>, HttpUtils.KeyValueListener {
+		private final String mRegion;
+		private final ArrayList<Location> mLocations = new ArrayList<Location>();
+		private final HttpUtils.LineListener mSplitter = new HttpUtils.KeyValueLineListener(this);
+
+		LocationParser(String region) {
+			mRegion = region;
+		}
 
-		String rows[] = mServer.fetchUrlWithID("/location_finder.php?region=" + region);
-		Arrays.sort(rows);
-		for (String row : rows) {
-			String vals[] = row.split("=", 2);
-			if (vals.length == 2) {
-				Location l = new Location(vals[0].trim(), vals[1].trim());
-				locations.add(l);
-			} else {
-				Log.e("Bad location line for region [" + region + "]: ["+ row + "]");
+		@Override
+		public void onLine(String line) throws IOException {
+			mSplitter.onLine(line);
+		}
+
+		@Override
+		public void onKeyValue(String key, String value) {
+			if (key.length() == 0 || value.length() == 0) {
+				Log.e("Bad location for region [" + mRegion + "]: [" + key + "=" + value + "]");
+				return;
 			}
+			mLocations.add(new Location(key, value));
+		}
+
+		@Override
+		public Location[] finish() {
+			return mLocations.toArray(new Location[mLocations.size()]);
 		}
-		return locations.toArray(new Location[locations.size()]);
 	}
 }
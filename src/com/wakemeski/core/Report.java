@@ -26,10 +26,10 @@
  */
 package com.wakemeski.core;
 
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 
 import android.content.Context;
 import android.net.ConnectivityManager;
@@ -42,7 +42,7 @@ import com.wakemeski.Log;
 import com.wakemeski.R;
 import com.wakemeski.pref.SnowSettingsSharedPreference;
 
-public class Report implements Parcelable {
+public class Report implements Parcelable, Cloneable {
 
 	private String _location = "";
 	private String _date = "";
@@ -64,19 +64,49 @@ public class Report implements Parcelable {
 
 	private String _weatherUrl = "";
 	private String _weatherIcon = "";
-	private final ArrayList<Weather> _weather = new ArrayList<Weather>();
+	private int _weatherIconResId = R.drawable.unknown;
+	/*
+	 * Forecast periods in order, descriptions are interned since the same
+	 * few descriptions repeat across periods and resorts
+	 */
+	private static final long NO_TIMES[] = new long[0];
+	private String _forecastWhen[] = NO_VALUES;
+	private long _forecastExact[] = NO_TIMES;
+	private String _forecastDesc[] = NO_VALUES;
 
 	private String _latitude = "";
 	private String _longitude = "";
 
 	private String _snowConditions = "";
 
-	private ArrayList<String> _snowTotals = new ArrayList<String>();
-	private ArrayList<String> _dailySnow = new ArrayList<String>();
-	private ArrayList<String> _tempReadings = new ArrayList<String>();
-	private String _freshSnow = "";
-	private String _snowUnits = "inches";
+	/*
+	 * Snow values are parsed once when the report is loaded.  The value arrays
+	 * hold the number found in each entry of the matching string array, or NaN
+	 * if the entry has no number.
+	 */
+	private static final String NO_VALUES[] = new String[0];
+	private static final float NO_NUMBERS[] = new float[0];
+	private String _snowTotals[] = NO_VALUES;
+	private float _snowTotalValues[] = NO_NUMBERS;
+	private String _dailySnow[] = NO_VALUES;
+	private float _dailySnowValues[] = NO_NUMBERS;
+	private String _tempReadings[] = NO_VALUES;
+	// Fresh snow as reported or NaN, and rounded to the nearest int or -1
+	private float _freshSnow = Float.NaN;
+	private int _freshSnowTotal = -1;
+	private SnowUnits _snowUnits = SnowUnits.INCHES;
 	private String _requestUrl = "";
+	// Version token of the report data from report.version, used for delta requests
+	private String _version = "";
+
+	/*
+	 * Freshness hints from the server: whether the server answered from its
+	 * own cache, how long the report stays valid (-1 if not given) and when
+	 * the server expects new data (0 if not given)
+	 */
+	private boolean _cacheFound = false;
+	private long _serverMaxAgeMs = -1;
+	private long _nextUpdateTimeMs = 0;
 	private WakeMeSkiServerInfo _serverInfo = new WakeMeSkiServerInfo();
 
 	private Resort _resort;
@@ -87,9 +117,45 @@ public class Report implements Parcelable {
 	// The error message from the server, will not be localized
 	private String _errMsgServer = "";
 
+	/*
+	 * The error from the last attempt to refresh this report, which kept
+	 * the data from an earlier load.  Empty if the report is up to date.
+	 */
+	private String _refreshError = "";
+
+	// When this report was fetched from the server
+	private long _loadTimeMs = System.currentTimeMillis();
+
+	// True when this report was restored from the ReportStore
+	private boolean _fromStore = false;
+
+	/*
+	 * The server response this report was parsed from, kept for the ReportStore
+	 * and the lazily decoded values.  Dropped once the values are decoded so
+	 * a report which has been read only holds its decoded fields, the
+	 * ReportStore keeps the lines a delta is merged into.
+	 */
+	private volatile String[] _lines = null;
+
+	/*
+	 * Location in _lines of the values not yet decoded, three ints per
+	 * ReportParser key: line index + 1 (0 if there is no value), value start
+	 * and value end.  Null once decoded.
+	 */
+	private volatile int[] _lazy = null;
+
+	/*
+	 * Version of the parcel encoding, change when writeToParcel() changes
+	 */
+	private static final int PARCEL_VERSION = 3;
+
 	public static final Parcelable.Creator<Report> CREATOR = new Parcelable.Creator<Report>() {
 		@Override
 		public Report createFromParcel(Parcel source) {
+			int version = source.readInt();
+			if (version != PARCEL_VERSION) {
+				throw new IllegalArgumentException("Unsupported report parcel version " + version);
+			}
 			Report r = new Report();
 
 			r._location = source.readString();
@@ -106,26 +172,48 @@ public class Report implements Parcelable {
 			r._liftsOpen = source.readInt();
 			r._liftsTotal = source.readInt();
 
-			r._resort = (Resort)source.readSerializable();
+			r._resort = Resort.CREATOR.createFromParcel(source);
 			r._errMsgLocalized = source.readString();
 			r._errMsgServer = source.readString();
 
 			r._weatherUrl = source.readString();
 			r._weatherIcon = source.readString();
-			source.readTypedList(r._weather, Weather.CREATOR);
+			r._weatherIconResId = source.readInt();
+			r._forecastWhen = source.createStringArray();
+			r._forecastExact = source.createLongArray();
+			String descTable[] = source.createStringArray();
+			for (int i = 0; i < descTable.length; i++) {
+				descTable[i] = descTable[i].intern();
+			}
+			int descIndex[] = source.createIntArray();
+			r._forecastDesc = new String[descIndex.length];
+			for (int i = 0; i < descIndex.length; i++) {
+				r._forecastDesc[i] = descTable[descIndex[i]];
+			}
 
 			r._latitude = source.readString();
 			r._longitude = source.readString();
 
 			r._snowConditions = source.readString();
 
-			r._freshSnow = source.readString();
+			r._freshSnow = source.readFloat();
+			r._freshSnowTotal = source.readInt();
+
+			r._snowUnits = source.readInt() != 0 ? SnowUnits.INCHES : SnowUnits.CENTIMETERS;
 
-			r._snowUnits = source.readString();
+			r._snowTotals = source.createStringArray();
+			r._snowTotalValues = source.createFloatArray();
+			r._dailySnow = source.createStringArray();
+			r._dailySnowValues = source.createFloatArray();
+			r._tempReadings = source.createStringArray();
 
-			source.readList(r._snowTotals, getClass().getClassLoader());
-			source.readList(r._dailySnow, getClass().getClassLoader());
-			source.readList(r._tempReadings, getClass().getClassLoader());
+			r._loadTimeMs = source.readLong();
+			r._fromStore = source.readInt() != 0;
+			r._version = source.readString();
+			r._cacheFound = source.readInt() != 0;
+			r._serverMaxAgeMs = source.readLong();
+			r._nextUpdateTimeMs = source.readLong();
+			r._refreshError = source.readString();
 			return r;
 		}
 
@@ -156,6 +244,7 @@ public class Report implements Parcelable {
 	 * Returns the date the report data was generated.
 	 */
 	public String getDate() {
+		decodeLazy();
 		return _date;
 	}
 
@@ -163,6 +252,7 @@ public class Report implements Parcelable {
 	 * Returns the average wind speed recorded on the mountain
 	 */
 	public String getWindSpeed() {
+		decodeLazy();
 		return _windAvg;
 	}
 
@@ -175,6 +265,7 @@ public class Report implements Parcelable {
 	}
 
 	public String getTrailsAsString() {
+		decodeLazy();
 		String s = "n/a";
 		if( _trailsTotal > 0 )
 			s = _trailsOpen + "/" + _trailsTotal;
@@ -208,15 +299,23 @@ public class Report implements Parcelable {
 	 * Returns an array of total snow depths read on the mountain
 	 */
 	public String[] getSnowDepths() {
-		return _snowTotals.toArray(new String[_snowTotals.size()]);
+		return _snowTotals.clone();
+	}
+
+	/**
+	 * @return the number in each entry of getSnowDepths(), NaN for entries
+	 * without a number
+	 */
+	public float[] getSnowDepthValues() {
+		return _snowTotalValues.clone();
 	}
 
 	public String getSnowDepthsAsString() {
 		StringBuffer sb = new StringBuffer();
-		int len = _snowTotals.size();
+		int len = _snowTotals.length;
 
 		for(int i = 0; i < len; i++) {
-			sb.append(_snowTotals.get(i));
+			sb.append(_snowTotals[i]);
 			if( i+2< len)
 				sb.append(',');
 			sb.append(' ');
@@ -229,18 +328,27 @@ public class Report implements Parcelable {
 	 * Returns an array of all daily snow reports found
 	 */
 	public String[] getDailySnow() {
-		return _dailySnow.toArray(new String[_dailySnow.size()]);
+		return _dailySnow.clone();
+	}
+
+	/**
+	 * @return the number in each entry of getDailySnow(), NaN for entries
+	 * without a number
+	 */
+	public float[] getDailySnowValues() {
+		return _dailySnowValues.clone();
 	}
 
 	/**
 	 * Returns the list of daily snow fall plus snow conditions if available
 	 */
 	public String getDailyDetails() {
+		decodeLazy();
 		StringBuffer sb = new StringBuffer();
-		int len = _dailySnow.size();
+		int len = _dailySnow.length;
 
 		for(int i = 0; i < len; i++) {
-			sb.append(_dailySnow.get(i));
+			sb.append(_dailySnow[i]);
 			if( i+2< len)
 				sb.append(',');
 			sb.append(' ');
@@ -256,17 +364,14 @@ public class Report implements Parcelable {
 	 * @return true if a fresh snow total was obtained for this resort
 	 */
 	public boolean hasFreshSnowTotal() {
-		return getFreshSnowTotal() >= 0;
+		return _freshSnowTotal >= 0;
 	}
 
 	/**
 	 * @return The units for all snow totals
 	 */
 	public SnowUnits getSnowUnits() {
-		if (_snowUnits.equalsIgnoreCase("inches")) {
-			return SnowUnits.INCHES;
-		}
-		return SnowUnits.CENTIMETERS;
+		return _snowUnits;
 	}
 
 	/**
@@ -274,13 +379,14 @@ public class Report implements Parcelable {
 	 *         hasFreshSnowTotal()
 	 */
 	public int getFreshSnowTotal() {
-		int snowTotal;
-		try {
-			snowTotal = Math.round(Float.parseFloat(_freshSnow));
-		} catch (NumberFormatException nfe) {
-			snowTotal = -1;
-		}
-		return snowTotal;
+		return _freshSnowTotal;
+	}
+
+	/**
+	 * @return The fresh snowfall as reported, or NaN if !hasFreshSnowTotal()
+	 */
+	public float getFreshSnow() {
+		return _freshSnow;
 	}
 
 	/**
@@ -289,11 +395,11 @@ public class Report implements Parcelable {
 	public String getFreshAsString() {
 		String unit = " \"";
 		String snowTotal;
-		if (getSnowUnits() == SnowUnits.CENTIMETERS)
+		if (_snowUnits == SnowUnits.CENTIMETERS)
 			unit = " cm";
 
-		if( hasFreshSnowTotal() ) {
-			snowTotal = getFreshSnowTotal() + unit;
+		if( _freshSnowTotal >= 0 ) {
+			snowTotal = _freshSnowTotal + unit;
 		} else {
 			snowTotal = "N/A";
 		}
@@ -301,6 +407,7 @@ public class Report implements Parcelable {
 	}
 
 	public String getSnowConditions() {
+		decodeLazy();
 		return _snowConditions;
 	}
 
@@ -308,7 +415,8 @@ public class Report implements Parcelable {
 	 * Returns an array of the various temperature readings on the mountain.
 	 */
 	public String[] getTemperatureReadings() {
-		return _tempReadings.toArray(new String[_tempReadings.size()]);
+		decodeLazy();
+		return _tempReadings.clone();
 	}
 
 	/**
@@ -336,6 +444,124 @@ public class Report implements Parcelable {
 		return _errMsgServer.length() != 0;
 	}
 
+	/**
+	 * @return the time this report was fetched from the server, in
+	 * milliseconds since the epoch
+	 */
+	public long getLoadTimeMs() {
+		return _loadTimeMs;
+	}
+
+	/**
+	 * @return how long ago this report was fetched from the server
+	 */
+	public long getAgeMs() {
+		return Math.max(0, System.currentTimeMillis() - _loadTimeMs);
+	}
+
+	/**
+	 * @return true if this report was restored from the ReportStore rather
+	 * than fetched from the server by this process
+	 */
+	public boolean isFromStore() {
+		return _fromStore;
+	}
+
+	/**
+	 * @return the version token the server gave this report's data, or an
+	 * empty string if the server doesn't version reports
+	 */
+	public String getVersion() {
+		return _version;
+	}
+
+	/**
+	 * @return true if the server answered with report data from its own cache
+	 * (cache.found) rather than freshly gathered data
+	 */
+	public boolean isServerCached() {
+		return _cacheFound;
+	}
+
+	/**
+	 * @return the time (in milliseconds since the epoch) until which the
+	 * server says this report won't change, from its cache.max-age and
+	 * cache.next-update hints, or 0 if the server gave no hint
+	 */
+	public long getServerExpiryTimeMs() {
+		long expiry = 0;
+		if (_serverMaxAgeMs >= 0) {
+			expiry = _loadTimeMs + _serverMaxAgeMs;
+		}
+		if (_nextUpdateTimeMs > 0 && (expiry == 0 || _nextUpdateTimeMs < expiry)) {
+			expiry = _nextUpdateTimeMs;
+		}
+		return expiry;
+	}
+
+	/**
+	 * @return the server response lines this report was parsed from, or null
+	 * if it was not parsed from a response or its values have been decoded
+	 */
+	String[] getLines() {
+		return _lines;
+	}
+
+	/**
+	 * Re-creates a report saved in the ReportStore
+	 * @param lines server response the report was parsed from
+	 * @param loadTimeMs time the response was fetched from the server
+	 */
+	static Report fromStore(Resort resort, String requestUrl, String[] lines,
+			long loadTimeMs, WakeMeSkiServerInfo serverInfo) {
+		ReportParser parser = new ReportParser(resort, requestUrl, null);
+		for (String line : lines) {
+			parser.parseLine(line);
+		}
+		Report r = parser.finish(serverInfo);
+		r._loadTimeMs = loadTimeMs;
+		r._fromStore = true;
+		return r;
+	}
+
+	/**
+	 * Records the location of a value to decode on first use
+	 * @param key ReportParser key code
+	 * @param line index of the line holding the value
+	 */
+	private void setLazy(int key, int line, int valStart, int valEnd) {
+		if (_lazy == null) {
+			_lazy = new int[ReportParser.KEYS.length * 3];
+		}
+		_lazy[key * 3] = line + 1;
+		_lazy[key * 3 + 1] = valStart;
+		_lazy[key * 3 + 2] = valEnd;
+	}
+
+	/**
+	 * Decodes the values recorded with setLazy(), must be called before
+	 * reading any of their fields.  The response lines are released after.
+	 */
+	private void decodeLazy() {
+		if (_lazy == null && _lines == null) {
+			return;
+		}
+		synchronized (this) {
+			int lazy[] = _lazy;
+			if (lazy != null) {
+				for (int key = 0; key < ReportParser.KEYS.length; key++) {
+					int line = lazy[key * 3];
+					if (line != 0) {
+						ReportParser.setValue(this, key, _lines[line - 1], lazy[key * 3 + 1],
+								lazy[key * 3 + 2]);
+					}
+				}
+				_lazy = null;
+			}
+			_lines = null;
+		}
+	}
+
 	/**
 	 * @return true if hasServerError() or has a localized error available
 	 * with getLocalizedError()
@@ -346,6 +572,44 @@ public class Report implements Parcelable {
 				 );
 	}
 
+	/**
+	 * @return true if this report holds data from an earlier load because
+	 * the last attempt to refresh it failed.  See getRefreshError().
+	 */
+	public boolean hasRefreshError() {
+		return _refreshError.length() != 0;
+	}
+
+	/**
+	 * @return the error from the failed refresh, or an empty
+	 * string if the report is up to date
+	 */
+	public String getRefreshError() {
+		return _refreshError;
+	}
+
+	/**
+	 * @param failed a report with errors from the attempt to refresh this one
+	 * @return a copy of this report carrying the error from failed
+	 */
+	Report withRefreshError(Report failed) {
+		Report r = copy();
+		r._refreshError = failed.getNonLocalizedError();
+		return r;
+	}
+
+	/**
+	 * @return a copy of this report, sharing the parsed values which are not
+	 * changed after loading
+	 */
+	Report copy() {
+		try {
+			return (Report) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+	}
+
 	public WakeMeSkiServerInfo getServerInfo() {
 		return _serverInfo;
 	}
@@ -354,6 +618,7 @@ public class Report implements Parcelable {
 	 * Returns true if the report include latitude and longitude coordinates
 	 */
 	public boolean hasGeo() {
+		decodeLazy();
 		if( _latitude != null && _latitude.length() > 0 &&
 			_longitude != null && _longitude.length() > 0 )
 			return true;
@@ -361,6 +626,7 @@ public class Report implements Parcelable {
 	}
 
 	public Uri getGeo() {
+		decodeLazy();
 		return Uri.parse("geo:" + _latitude + "," + _longitude);
 	}
 
@@ -368,6 +634,7 @@ public class Report implements Parcelable {
 	 * Returns a URL to information related to the given report
 	 */
 	public String getDetailsURL() {
+		decodeLazy();
 		return _detailsURL;
 	}
 
@@ -376,6 +643,7 @@ public class Report implements Parcelable {
 	 * the getDetailsURL is more for drilling down into snow information
 	 */
 	public String getLocationURL() {
+		decodeLazy();
 		return _locationURL;
 	}
 
@@ -384,6 +652,7 @@ public class Report implements Parcelable {
 	 * getLocationComments()
 	 */
 	public boolean hasLocationComments() {
+		decodeLazy();
 		return _locationComments.length() != 0 ;
 	}
 	/**
@@ -391,6 +660,7 @@ public class Report implements Parcelable {
 	 * Its usually something like "Come Saturday for Elvis Presley Day!"
 	 */
 	public String getLocationComments() {
+		decodeLazy();
 		return _locationComments;
 	}
 
@@ -398,6 +668,7 @@ public class Report implements Parcelable {
 	 * @return The url where "fresh" snow information is obtained by the PHP parsing script
 	 */
 	public String getFreshSourceURL() {
+		decodeLazy();
 		return _freshSourceUrl;
 	}
 
@@ -409,36 +680,62 @@ public class Report implements Parcelable {
 	}
 
 	public String getWeatherURL() {
+		decodeLazy();
 		return _weatherUrl;
 	}
 
+	/**
+	 * @return a Weather for each forecast period.  Use getForecastCount() and
+	 * the getForecast methods to go through the forecast without allocating.
+	 */
 	public Weather[] getWeather() {
-		return _weather.toArray(new Weather[_weather.size()]);
+		Weather weather[] = new Weather[_forecastWhen.length];
+		for (int i = 0; i < weather.length; i++) {
+			weather[i] = new Weather(_forecastWhen[i], _forecastExact[i], _forecastDesc[i],
+					_snowUnits);
+		}
+		return weather;
 	}
 
-	public String getWeatherIcon() {
-		return _weatherIcon;
+	/**
+	 * @return the number of forecast periods in this report
+	 */
+	public int getForecastCount() {
+		return _forecastWhen.length;
 	}
 
-	public int getWeatherIconResId() {
-		String parts[] = _weatherIcon.split("/");
-		String name = parts[parts.length - 1];
-		parts = name.split("\\.");
-		name = parts[0];
+	/**
+	 * @return the name of forecast period i, for instance Tonight
+	 */
+	public String getForecastWhen(int i) {
+		return _forecastWhen[i];
+	}
 
-		Pattern p = Pattern.compile("(\\d+)");
-		Matcher m = p.matcher(name);
-		if (m.find()) {
-			// TODO String percentage = m.group(0);
-			name = name.substring(0, m.start());
-		}
+	/**
+	 * @return the start of forecast period i in seconds since the epoch, or 0
+	 * if not known
+	 */
+	public long getForecastExact(int i) {
+		return _forecastExact[i];
+	}
 
-		Integer i = _icons.get(name);
-		if (i != null) {
-			return i.intValue();
-		}
+	/**
+	 * @return the forecast for period i
+	 */
+	public String getForecastDesc(int i) {
+		return _forecastDesc[i];
+	}
 
-		return R.drawable.unknown;
+	public String getWeatherIcon() {
+		return _weatherIcon;
+	}
+
+	/**
+	 * @return the drawable for getWeatherIcon(), resolved when the report was
+	 * loaded
+	 */
+	public int getWeatherIconResId() {
+		return _weatherIconResId;
 	}
 
 	@Override
@@ -448,6 +745,8 @@ public class Report implements Parcelable {
 
 	@Override
 	public void writeToParcel(Parcel dest, int flags) {
+		decodeLazy();
+		dest.writeInt(PARCEL_VERSION);
 		dest.writeString(_location);
 		dest.writeString(_date);
 		dest.writeString(_windAvg);
@@ -462,64 +761,146 @@ public class Report implements Parcelable {
 		dest.writeInt(_liftsOpen);
 		dest.writeInt(_liftsTotal);
 
-		dest.writeSerializable(_resort);
+		_resort.writeToParcel(dest, flags);
 		dest.writeString(_errMsgLocalized);
 		dest.writeString(_errMsgServer);
 
 		dest.writeString(_weatherUrl);
 		dest.writeString(_weatherIcon);
-		dest.writeTypedList(_weather);
+		dest.writeInt(_weatherIconResId);
+		dest.writeStringArray(_forecastWhen);
+		dest.writeLongArray(_forecastExact);
+		/*
+		 * Forecast descriptions repeat, so each distinct description is
+		 * written once followed by the table index for each period
+		 */
+		String descTable[] = new String[_forecastDesc.length];
+		int descIndex[] = new int[_forecastDesc.length];
+		int tableSize = 0;
+		for (int i = 0; i < _forecastDesc.length; i++) {
+			int j = 0;
+			while (j < tableSize && !descTable[j].equals(_forecastDesc[i])) {
+				j++;
+			}
+			if (j == tableSize) {
+				descTable[tableSize++] = _forecastDesc[i];
+			}
+			descIndex[i] = j;
+		}
+		String table[] = new String[tableSize];
+		System.arraycopy(descTable, 0, table, 0, tableSize);
+		dest.writeStringArray(table);
+		dest.writeIntArray(descIndex);
 
 		dest.writeString(_latitude);
 		dest.writeString(_longitude);
 
 		dest.writeString(_snowConditions);
 
-		dest.writeString(_freshSnow);
-		dest.writeString(_snowUnits);
-
-		dest.writeList(_snowTotals);
-		dest.writeList(_dailySnow);
-		dest.writeList(_tempReadings);
+		dest.writeFloat(_freshSnow);
+		dest.writeInt(_freshSnowTotal);
+		dest.writeInt(_snowUnits == SnowUnits.INCHES ? 1 : 0);
+
+		dest.writeStringArray(_snowTotals);
+		dest.writeFloatArray(_snowTotalValues);
+		dest.writeStringArray(_dailySnow);
+		dest.writeFloatArray(_dailySnowValues);
+		dest.writeStringArray(_tempReadings);
+
+		dest.writeLong(_loadTimeMs);
+		dest.writeInt(_fromStore ? 1 : 0);
+		dest.writeString(_version);
+		dest.writeInt(_cacheFound ? 1 : 0);
+		dest.writeLong(_serverMaxAgeMs);
+		dest.writeLong(_nextUpdateTimeMs);
+		dest.writeString(_refreshError);
 	}
 
-	private static ArrayList<String> toList(String vals[]) {
-		ArrayList<String> l = new ArrayList<String>();
-
-		for (String v : vals) {
-			l.add(v);
-		}
-		return l;
+	/**
+	 * Loads a report from the given location with default URL
+	 */
+	public static Report loadReport(Context c, ConnectivityManager cm,
+		Resort resort, WakeMeSkiServer server)
+	{
+		return loadReport(c,cm,resort,server,0);
 	}
 
 	/**
-	 * Simple wrapper to Integer.parseInt that will catch format errors
+	 * Loads a report, requesting only the changes since previous when the
+	 * server supports report deltas.  Falls back to a full report if the
+	 * server's changes are not against previous.
+	 * @param serverInfo info of server, already fetched by the caller so
+	 * loading doesn't wait on server_info.php
+	 * @param cache response cache, DiskResponseCache.getRevalidatingView() when
+	 * a recently cached report must not be used without asking the server
+	 * @param previous the last report loaded for resort, or null
+	 * @param timeoutMs connect and read timeout in milliseconds, 0 for the
+	 * default timeouts
 	 */
-	private static int getInt(String val) {
-		int v = 0;
-		/*
-		 * Don't bother to try parsing if no value is returned or if
-		 * n/a is returned.
-		 */
-		if (val.length() != 0 &&
-				!val.equals("n/a") ) {
-			try {
-				v = Integer.parseInt(val);
-			} catch (Throwable t) {
-				Log.e("Unable to parse value to int: " + val);
+	public static Report loadReport(Context c, ConnectivityManager cm,
+		Resort resort, WakeMeSkiServer server, WakeMeSkiServerInfo serverInfo,
+		RevalidationCache cache, int timeoutMs, Report previous)
+	{
+		String since = getDeltaBase(previous, serverInfo);
+		if (since != null) {
+			Report r = loadReportWithAppendUrl(c,cm,resort,server,serverInfo,"",since,previous,
+					cache,timeoutMs);
+			if (r != null) {
+				return r;
 			}
+			Log.i("Report delta for " + resort + " was not against version " + since
+					+ ", loading full report");
 		}
+		return loadReportWithAppendUrl(c,cm,resort,server,serverInfo,"",null,null,cache,timeoutMs);
+	}
 
-		return v;
+	/**
+	 * @param serverInfo info of the server the next report will come from
+	 * @return the version to request changes since for a report after
+	 * previous, or null if a full report must be requested
+	 */
+	static String getDeltaBase(Report previous, WakeMeSkiServerInfo serverInfo) {
+		if (previous == null || previous.hasErrors() || previous._lines == null
+				|| previous._version.length() == 0
+				|| !serverInfo.supportsReportDelta()) {
+			return null;
+		}
+		return previous._version;
 	}
 
 	/**
-	 * Loads a report from the given location with default URL
+	 * Loads a report from the given location with default URL, failing with a
+	 * timeout error if the server doesn't respond within timeoutMs
+	 * @param timeoutMs connect and read timeout in milliseconds, 0 for the
+	 * default timeouts
 	 */
 	public static Report loadReport(Context c, ConnectivityManager cm,
-		Resort resort, WakeMeSkiServer server)
+		Resort resort, WakeMeSkiServer server, int timeoutMs)
 	{
-		return loadReportWithAppendUrl(c,cm,resort,server,"");
+		return loadReportWithAppendUrl(c,cm,resort,server,server.getServerInfo(),"",null,null,
+				DiskResponseCache.getInstance(c),timeoutMs);
+	}
+
+	/**
+	 * @return a report for resort with a timeout error, used for resorts which
+	 * could not be loaded before a deadline
+	 */
+	static Report newTimedOutReport(Context c, Resort resort) {
+		Report r = new Report();
+		r._resort = resort;
+		r._errMsgLocalized = c.getString(R.string.error_timeout);
+		return r;
+	}
+
+	/**
+	 * @return a report for resort with the error which stopped it loading
+	 */
+	static Report newErrorReport(Resort resort, Throwable t) {
+		Report r = new Report();
+		r._resort = resort;
+		r._errMsgLocalized = t.getLocalizedMessage() != null ?
+				t.getLocalizedMessage() : t.toString();
+		return r;
 	}
 
 	/**
@@ -528,17 +909,29 @@ public class Report implements Parcelable {
 	public static Report loadReportNoCache(Context c, ConnectivityManager cm,
 			Resort resort, WakeMeSkiServer server)
 	{
-		return loadReportWithAppendUrl(c,cm,resort,server,"&nocache=1");
+		return loadReportWithAppendUrl(c,cm,resort,server,server.getServerInfo(),"&nocache=1",
+				null,null,null,0);
 	}
 
 
 	/**
 	 * Loads a report.  Allows specifying custom append values to the URL request
 	 * (such as nocache=1)
-	 * @return
+	 * @param serverInfo info of server, set on the report
+	 * @param since version of previous to request changes since, or null for
+	 * a full report
+	 * @param previous report the changes are merged into when since is set
+	 * @param cache previous responses to revalidate with a conditional GET, or null
+	 * to always download the full report
+	 * @param timeoutMs connect and read timeout in milliseconds, 0 for the
+	 * default timeouts
+	 * @return the report, or null if since was set and the server sent changes
+	 * against a different version
 	 */
 	private static Report loadReportWithAppendUrl(Context c, ConnectivityManager cm,
-			Resort resort, WakeMeSkiServer server, String appendUrl) {
+			Resort resort, WakeMeSkiServer server, WakeMeSkiServerInfo serverInfo,
+			String appendUrl, String since, Report previous, RevalidationCache cache,
+			int timeoutMs) {
 
 		// A report will be in the format:
 		// location = OSOALP
@@ -559,218 +952,985 @@ public class Report implements Parcelable {
 
 		Location l = resort.getLocation();
 
-		String lines[] = new String[0];
-
 		String url = "/" + l.getReportUrlPath()
 						+ appendUrl;
 		r._requestUrl = server.getFetchUrl(url);
+		String fetchUrl = url;
+		if (since != null) {
+			fetchUrl += "&since=" + Uri.encode(since);
+		}
 		try {
-			lines = server.fetchUrlWithID(url);
+			/*
+			 * Each line is parsed as it arrives from the network
+			 */
+			return server.fetchWithID(fetchUrl, cache, timeoutMs,
+					new ReportParserFactory(resort, url, previous, serverInfo));
 		} catch (Exception e) {
 			NetworkInfo n = cm.getActiveNetworkInfo();
 			if (n == null || !n.isConnected()) {
 				r._errMsgLocalized = c.getString(R.string.error_no_connection);
+			} else if (e instanceof InterruptedIOException) {
+				/*
+				 * Connect or read timeout
+				 */
+				r._errMsgLocalized = c.getString(R.string.error_timeout);
 			} else {
 				r._errMsgLocalized = e.getLocalizedMessage();
 			}
 			return r;
 		}
+	}
 
-		String when[] = new String[4];
-		long whenExact[] = new long[4];
-		String desc[] = new String[4];
-		for (String line : lines) {
-			String parts[] = line.split("=", 2);
-			if (parts.length == 2) {
-				parts[0] = parts[0].trim();
-				parts[1] = parts[1].trim();
-				if( parts[0].equals("fresh.source.url")) {
-					r._freshSourceUrl = parts[1];
-				} else if (parts[0].equals("wind.avg")) {
-					r._windAvg = parts[1];
-				} else if (parts[0].equals("date")) {
-					r._date = parts[1];
-				} else if (parts[0].equals("details.url")) {
-					r._detailsURL = parts[1];
-				} else if (parts[0].equals("location.info")) {
-					r._locationURL = parts[1];
-				} else if (parts[0].equals("location.comments")) {
-					r._locationComments = parts[1];
-				} else if (parts[0].equals("trails.open")) {
-					r._trailsOpen = getInt(parts[1]);
-				} else if (parts[0].equals("trails.total")) {
-					r._trailsTotal = getInt(parts[1]);
-				} else if (parts[0].equals("trails.percent.open")) {
-					r._trailsPercentOpen = parts[1];
-				} else if (parts[0].equals("lifts.open")) {
-					r._liftsOpen = getInt(parts[1]);
-				} else if (parts[0].equals("lifts.total")) {
-					r._liftsTotal = getInt(parts[1]);
-				} else if (parts[0].equals("weather.url")) {
-					r._weatherUrl = parts[1];
-				} else if (parts[0].equals("weather.icon")) {
-					r._weatherIcon = parts[1];
-				} else if( parts[0].startsWith("weather.forecast.when.")) {
-					int idx = Integer.parseInt(parts[0].substring(parts[0].length()-1));
-					if(idx < when.length) {
-						when[idx] = parts[1];
-					}
-				} else if( parts[0].startsWith("weather.forecast.when-exact.")) {
-					int idx = Integer.parseInt(parts[0].substring(parts[0].length()-1));
-					if(idx < when.length) {
-						whenExact[idx] = Long.parseLong(parts[1]);
-					}
-				} else if( parts[0].startsWith("weather.forecast.desc.")) {
-					int idx = Integer.parseInt(parts[0].substring(parts[0].length()-1));
-					if(idx < desc.length) {
-						desc[idx] = parts[1];
-					}
+	/**
+	 * Creates a ReportParser for each server response in WakeMeSkiServer.fetch()
+	 */
+	private static class ReportParserFactory implements
+			WakeMeSkiServer.ResponseParserFactory<Report> {
+		private final Resort mResort;
+		private final String mUrl;
+		private final Report mPrevious;
+		private final WakeMeSkiServerInfo mServerInfo;
+
+		/**
+		 * @param url report URL relative to the server
+		 * @param previous report a delta response is merged into, or null
+		 */
+		ReportParserFactory(Resort resort, String url, Report previous,
+				WakeMeSkiServerInfo serverInfo) {
+			mResort = resort;
+			mUrl = url;
+			mPrevious = previous;
+			mServerInfo = serverInfo;
+		}
+
+		@Override
+		public WakeMeSkiServer.ResponseParser<Report> newParser(String serverUrl) {
+			return new ServerResponseParser(
+					new ReportParser(mResort, serverUrl + mUrl, mPrevious), mServerInfo);
+		}
+
+		@Override
+		public Report copy(Report result) {
+			return result.copy();
+		}
+	}
+
+	/**
+	 * Passes a server response to a ReportParser, keeping the time a response
+	 * served from the cache was fetched as the report's load time
+	 */
+	private static class ServerResponseParser implements
+			WakeMeSkiServer.ResponseParser<Report>, HttpUtils.CachedLineListener {
+		private final ReportParser mParser;
+		private final WakeMeSkiServerInfo mServerInfo;
+
+		ServerResponseParser(ReportParser parser, WakeMeSkiServerInfo serverInfo) {
+			mParser = parser;
+			mServerInfo = serverInfo;
+		}
+
+		@Override
+		public void onCachedResponse(long timeMs) {
+			mParser.setFetchTimeMs(timeMs);
+		}
+
+		@Override
+		public void onLine(String line) {
+			mParser.parseLine(line);
+		}
+
+		@Override
+		public Report finish() {
+			return mParser.finish(mServerInfo);
+		}
+	}
+
+	/**
+	 * Builds a report one key=value line at a time, as read from a report URL.
+	 *
+	 * Keys are matched in place against a table of the known keys grouped by
+	 * length, and values are located by index, so only the values which are
+	 * kept in the report are copied out of the line.
+	 *
+	 * When a report is requested with since=&lt;version&gt; the server may
+	 * answer with only the lines which changed since that version:
+	 * <pre>
+	 * report.delta = &lt;version the changes are against&gt;
+	 * report.version = &lt;new version&gt;
+	 * snow.fresh = 2
+	 * </pre>
+	 * The changed lines replace the lines with the same key in the previous
+	 * report and the result is parsed as a full report.  A line with an empty
+	 * value clears a key.  The server may also ignore since and send a full
+	 * report.
+	 */
+	static class ReportParser {
+		/*
+		 * Codes of the known keys, the index of each key in KEYS
+		 */
+		private static final int KEY_FRESH_SOURCE_URL = 0;
+		private static final int KEY_WIND_AVG = 1;
+		private static final int KEY_DATE = 2;
+		private static final int KEY_DETAILS_URL = 3;
+		private static final int KEY_LOCATION_INFO = 4;
+		private static final int KEY_LOCATION_COMMENTS = 5;
+		private static final int KEY_TRAILS_OPEN = 6;
+		private static final int KEY_TRAILS_TOTAL = 7;
+		private static final int KEY_TRAILS_PERCENT_OPEN = 8;
+		private static final int KEY_LIFTS_OPEN = 9;
+		private static final int KEY_LIFTS_TOTAL = 10;
+		private static final int KEY_WEATHER_URL = 11;
+		private static final int KEY_WEATHER_ICON = 12;
+		private static final int KEY_LOCATION = 13;
+		private static final int KEY_LATITUDE = 14;
+		private static final int KEY_LONGITUDE = 15;
+		private static final int KEY_SNOW_CONDITIONS = 16;
+		private static final int KEY_ERR_MSG = 17;
+		private static final int KEY_ERR_MSG_LOCALIZED = 18;
+		private static final int KEY_SNOW_FRESH = 19;
+		private static final int KEY_SNOW_UNITS = 20;
+		private static final int KEY_CACHE_FOUND = 21;
+		private static final int KEY_SNOW_TOTAL = 22;
+		private static final int KEY_SNOW_DAILY = 23;
+		private static final int KEY_TEMP_READINGS = 24;
+		private static final int KEY_REPORT_VERSION = 25;
+		private static final int KEY_REPORT_DELTA = 26;
+		private static final int KEY_CACHE_MAX_AGE = 27;
+		private static final int KEY_CACHE_NEXT_UPDATE = 28;
+		private static final int KEY_UNKNOWN = -1;
+
+		private static final String KEYS[] = {
+			"fresh.source.url",
+			"wind.avg",
+			"date",
+			"details.url",
+			"location.info",
+			"location.comments",
+			"trails.open",
+			"trails.total",
+			"trails.percent.open",
+			"lifts.open",
+			"lifts.total",
+			"weather.url",
+			"weather.icon",
+			"location",
+			"location.latitude",
+			"location.longitude",
+			"snow.conditions",
+			"err.msg",
+			"err.msg.localized",
+			"snow.fresh",
+			"snow.units",
+			"cache.found",
+			"snow.total",
+			"snow.daily",
+			"temp.readings",
+			"report.version",
+			"report.delta",
+			"cache.max-age",
+			"cache.next-update",
+		};
+
+		/*
+		 * Keys whose values are only shown in the report details, these are
+		 * decoded on first use rather than while parsing so background checks
+		 * which only look at fresh snow and the forecast don't pay for them
+		 */
+		private static final boolean LAZY_KEYS[] = new boolean[KEYS.length];
+		static {
+			int lazy[] = {
+				KEY_FRESH_SOURCE_URL, KEY_WIND_AVG, KEY_DATE, KEY_DETAILS_URL,
+				KEY_LOCATION_INFO, KEY_LOCATION_COMMENTS, KEY_TRAILS_PERCENT_OPEN,
+				KEY_WEATHER_URL, KEY_LOCATION, KEY_LATITUDE, KEY_LONGITUDE,
+				KEY_SNOW_CONDITIONS, KEY_TEMP_READINGS,
+			};
+			for (int key : lazy) {
+				LAZY_KEYS[key] = true;
+			}
+		}
+
+		/*
+		 * Codes of the keys in KEYS indexed by key length
+		 */
+		private static final int KEYS_BY_LENGTH[][];
+		static {
+			int maxLength = 0;
+			for (String key : KEYS) {
+				maxLength = Math.max(maxLength, key.length());
+			}
+			int counts[] = new int[maxLength + 1];
+			for (String key : KEYS) {
+				counts[key.length()]++;
+			}
+			KEYS_BY_LENGTH = new int[maxLength + 1][];
+			for (int len = 0; len <= maxLength; len++) {
+				KEYS_BY_LENGTH[len] = new int[counts[len]];
+				counts[len] = 0;
+			}
+			for (int code = 0; code < KEYS.length; code++) {
+				int len = KEYS[code].length();
+				KEYS_BY_LENGTH[len][counts[len]++] = code;
+			}
+		}
+
+		/*
+		 * Forecast keys end with the index of the forecast, for instance
+		 * weather.forecast.when.0
+		 */
+		private static final String FORECAST_PREFIX = "weather.forecast.";
+		private static final String FORECAST_WHEN = "when.";
+		private static final String FORECAST_WHEN_EXACT = "when-exact.";
+		private static final String FORECAST_DESC = "desc.";
+
+		private final Report mReport;
+		/*
+		 * Forecast periods in the order their first line was read, the server
+		 * index of each period is in mForecastIndex
+		 */
+		private int mForecastIndex[] = new int[4];
+		private String mForecastWhen[] = new String[4];
+		private long mForecastExact[] = new long[4];
+		private String mForecastDesc[] = new String[4];
+		private int mForecastCount = 0;
+		private final ArrayList<String> mLines = new ArrayList<String>();
+
+		/*
+		 * Report a delta response is merged into, true once a report.delta
+		 * line is read and true if the delta is not against mPrevious
+		 */
+		private final Report mPrevious;
+		private boolean mDelta = false;
+		private boolean mDeltaMismatch = false;
+
+		/*
+		 * Time the lines were fetched from the server when they came from a
+		 * cached response, 0 if they were just read from the network
+		 */
+		private long mFetchTimeMs = 0;
+
+		/**
+		 * @param resort resort the report is for
+		 * @param requestUrl URL requested of the server to build this report
+		 * @param previous report to merge a delta response into, or null if a
+		 * delta was not requested
+		 */
+		ReportParser(Resort resort, String requestUrl, Report previous) {
+			mReport = new Report();
+			mReport._resort = resort;
+			mReport._requestUrl = requestUrl;
+			mPrevious = previous;
+		}
+
+		/**
+		 * Sets the load time of the report to the time a cached response was
+		 * fetched from the server instead of the time it is parsed
+		 */
+		void setFetchTimeMs(long fetchTimeMs) {
+			mFetchTimeMs = fetchTimeMs;
+		}
+
+		/**
+		 * @return the code of the key at line[start, end) or KEY_UNKNOWN
+		 */
+		private static int findKey(String line, int start, int end) {
+			int len = end - start;
+			if (len >= KEYS_BY_LENGTH.length) {
+				return KEY_UNKNOWN;
+			}
+			for (int code : KEYS_BY_LENGTH[len]) {
+				if (line.regionMatches(start, KEYS[code], 0, len)) {
+					return code;
 				}
-				else if (parts[0].equals("location")) {
-					r._location = parts[1];
-				} else if (parts[0].equals("location.latitude")) {
-					r._latitude = parts[1];
-				} else if (parts[0].equals("location.longitude")) {
-					r._longitude = parts[1];
-				} else if (parts[0].equals("snow.conditions")) {
-					r._snowConditions = parts[1];
-				} else if (parts[0].equals("err.msg")) {
-					r._errMsgServer = parts[1];
-				} else if (parts[0].equals("err.msg.localized")) {
-					/*
-					 * Include a method to set a localized error message from the
-					 * server, doubtful that we'd want to do this but never say never
-					 */
-					r._errMsgLocalized = parts[1];
-				}
-				else if (parts[0].equals("snow.fresh")) {
-					r._freshSnow = parts[1];
-				} else if (parts[0].equals("snow.units")) {
-					r._snowUnits = parts[1];
-				} else if (parts[0].equals("cache.found")) {
-					// do nothing, but avoid warning about unknown key-value pair.
-				} else {
-					String values[] = parts[1].split("\\s+");
-					ArrayList<String> vals = toList(values);
+			}
+			return KEY_UNKNOWN;
+		}
 
-					if (parts[0].equals("snow.total")) {
-						r._snowTotals = vals;
-					} else if (parts[0].equals("snow.daily")) {
-						r._dailySnow = vals;
-					}
+		/**
+		 * Parses the non negative decimal number at line[start, end) without
+		 * copying it
+		 * @return the number or -1 if line[start, end) is not a number
+		 */
+		private static long parseNumber(String line, int start, int end) {
+			if (start == end) {
+				return -1;
+			}
+			long v = 0;
+			for (int i = start; i < end; i++) {
+				char c = line.charAt(i);
+				if (c < '0' || c > '9') {
+					return -1;
+				}
+				v = v * 10 + (c - '0');
+			}
+			return v;
+		}
+
+		/**
+		 * @return the integer value at line[start, end), 0 if the value is
+		 * empty, n/a or not a number
+		 */
+		private static int getInt(String line, int start, int end) {
+			long v = parseNumber(line, start, end);
+			if (v < 0 || v > Integer.MAX_VALUE) {
+				if (start != end && !line.regionMatches(start, "n/a", 0, end - start)) {
+					Log.e("Unable to parse value to int: " + line.substring(start, end));
+				}
+				return 0;
+			}
+			return (int)v;
+		}
+
+		/**
+		 * @return INCHES if line[start, end) is inches, otherwise CENTIMETERS
+		 */
+		private static SnowUnits getSnowUnits(String line, int start, int end) {
+			String inches = SnowUnits.INCHES.getAbbreviation();
+			if (end - start == inches.length()
+					&& line.regionMatches(true, start, inches, 0, inches.length())) {
+				return SnowUnits.INCHES;
+			}
+			return SnowUnits.CENTIMETERS;
+		}
+
+		/**
+		 * @return the number at line[start, end) or NaN if it is not a number
+		 */
+		private static float parseFloat(String line, int start, int end) {
+			if (start == end) {
+				return Float.NaN;
+			}
+			try {
+				return Float.parseFloat(line.substring(start, end));
+			} catch (NumberFormatException nfe) {
+				return Float.NaN;
+			}
+		}
+
+		/**
+		 * @return the first number in each of values, for instance 4.3 for
+		 * Fresh(4.3), or NaN for values without a number
+		 */
+		private static float[] getNumbers(String values[]) {
+			float numbers[] = new float[values.length];
+			for (int i = 0; i < values.length; i++) {
+				String v = values[i];
+				int start = 0;
+				while (start < v.length() && !Character.isDigit(v.charAt(start))) {
+					start++;
+				}
+				int end = start;
+				while (end < v.length() && (Character.isDigit(v.charAt(end)) || v.charAt(end) == '.')) {
+					end++;
+				}
+				numbers[i] = parseFloat(v, start, end);
+			}
+			return numbers;
+		}
+
+		/**
+		 * @return the whitespace separated values at line[start, end)
+		 */
+		private static String[] getValues(String line, int start, int end) {
+			ArrayList<String> vals = new ArrayList<String>();
+			int i = start;
+			while (i < end) {
+				int tokenStart = i;
+				while (i < end && !Character.isWhitespace(line.charAt(i))) {
+					i++;
+				}
+				vals.add(line.substring(tokenStart, i));
+				while (i < end && Character.isWhitespace(line.charAt(i))) {
+					i++;
+				}
+			}
+			if (vals.isEmpty()) {
+				/*
+				 * An empty value is a single empty entry, as String.split() gave
+				 */
+				vals.add("");
+			}
+			return vals.toArray(new String[vals.size()]);
+		}
+
+		/**
+		 * Parse one line of the report response
+		 */
+		void parseLine(String line) {
+			mLines.add(line);
+			if (mDelta) {
+				/*
+				 * Delta lines are merged with the previous report in finish()
+				 */
+				return;
+			}
+			Report r = mReport;
+			int sep = line.indexOf('=');
+			if (sep < 0) {
+				Log.e("Error invalid line from report URL("
+						+ r._resort.getLocation().getReportUrlPath() + " line: " + line);
+				return;
+			}
+			/*
+			 * Trim the key and value in place
+			 */
+			int keyStart = 0;
+			int keyEnd = sep;
+			while (keyStart < keyEnd && line.charAt(keyStart) <= ' ') {
+				keyStart++;
+			}
+			while (keyEnd > keyStart && line.charAt(keyEnd - 1) <= ' ') {
+				keyEnd--;
+			}
+			int valStart = sep + 1;
+			int valEnd = line.length();
+			while (valStart < valEnd && line.charAt(valStart) <= ' ') {
+				valStart++;
+			}
+			while (valEnd > valStart && line.charAt(valEnd - 1) <= ' ') {
+				valEnd--;
+			}
+
+			int key = findKey(line, keyStart, keyEnd);
+			if (key == KEY_REPORT_DELTA) {
+				startDelta(line.substring(valStart, valEnd));
+			} else if (key == KEY_UNKNOWN) {
+				if (!parseForecast(line, keyStart, keyEnd, valStart, valEnd)) {
+					Log.i("Unknown key-value from from report URL("
+							+ r._resort.getLocation().getReportUrlPath() + " line: " + line);
+				}
+			} else if (LAZY_KEYS[key]) {
+				/*
+				 * Only remember where the value is, it is decoded by
+				 * Report.decodeLazy() if it is ever used
+				 */
+				r.setLazy(key, mLines.size() - 1, valStart, valEnd);
+			} else {
+				setValue(r, key, line, valStart, valEnd);
+			}
+		}
 
-					else if (parts[0].equals("temp.readings")) {
-						r._tempReadings = vals;
-					} else {
-						Log.i("Unknown key-value from from report URL("
-								+ l.getReportUrlPath() + " line: " + line);
+		/**
+		 * Sets the report field for key from the value at line[valStart, valEnd)
+		 */
+		static void setValue(Report r, int key, String line, int valStart, int valEnd) {
+			switch (key) {
+			case KEY_FRESH_SOURCE_URL:
+				r._freshSourceUrl = line.substring(valStart, valEnd);
+				break;
+			case KEY_WIND_AVG:
+				r._windAvg = line.substring(valStart, valEnd);
+				break;
+			case KEY_DATE:
+				r._date = line.substring(valStart, valEnd);
+				break;
+			case KEY_DETAILS_URL:
+				r._detailsURL = line.substring(valStart, valEnd);
+				break;
+			case KEY_LOCATION_INFO:
+				r._locationURL = line.substring(valStart, valEnd);
+				break;
+			case KEY_LOCATION_COMMENTS:
+				r._locationComments = line.substring(valStart, valEnd);
+				break;
+			case KEY_TRAILS_OPEN:
+				r._trailsOpen = getInt(line, valStart, valEnd);
+				break;
+			case KEY_TRAILS_TOTAL:
+				r._trailsTotal = getInt(line, valStart, valEnd);
+				break;
+			case KEY_TRAILS_PERCENT_OPEN:
+				r._trailsPercentOpen = line.substring(valStart, valEnd);
+				break;
+			case KEY_LIFTS_OPEN:
+				r._liftsOpen = getInt(line, valStart, valEnd);
+				break;
+			case KEY_LIFTS_TOTAL:
+				r._liftsTotal = getInt(line, valStart, valEnd);
+				break;
+			case KEY_WEATHER_URL:
+				r._weatherUrl = line.substring(valStart, valEnd);
+				break;
+			case KEY_WEATHER_ICON:
+				r._weatherIcon = line.substring(valStart, valEnd);
+				r._weatherIconResId = getWeatherIconResId(r._weatherIcon);
+				break;
+			case KEY_LOCATION:
+				r._location = line.substring(valStart, valEnd);
+				break;
+			case KEY_LATITUDE:
+				r._latitude = line.substring(valStart, valEnd);
+				break;
+			case KEY_LONGITUDE:
+				r._longitude = line.substring(valStart, valEnd);
+				break;
+			case KEY_SNOW_CONDITIONS:
+				r._snowConditions = line.substring(valStart, valEnd);
+				break;
+			case KEY_ERR_MSG:
+				r._errMsgServer = line.substring(valStart, valEnd);
+				break;
+			case KEY_ERR_MSG_LOCALIZED:
+				/*
+				 * Include a method to set a localized error message from the
+				 * server, doubtful that we'd want to do this but never say never
+				 */
+				r._errMsgLocalized = line.substring(valStart, valEnd);
+				break;
+			case KEY_SNOW_FRESH:
+				r._freshSnow = parseFloat(line, valStart, valEnd);
+				r._freshSnowTotal = r._freshSnow >= 0 ? Math.round(r._freshSnow) : -1;
+				break;
+			case KEY_SNOW_UNITS:
+				r._snowUnits = getSnowUnits(line, valStart, valEnd);
+				break;
+			case KEY_REPORT_VERSION:
+				r._version = line.substring(valStart, valEnd);
+				break;
+			case KEY_CACHE_FOUND:
+				r._cacheFound = getInt(line, valStart, valEnd) != 0;
+				break;
+			case KEY_CACHE_MAX_AGE: {
+				// seconds
+				long maxAge = parseNumber(line, valStart, valEnd);
+				r._serverMaxAgeMs = maxAge < 0 ? -1 : maxAge * 1000;
+				break;
+			}
+			case KEY_CACHE_NEXT_UPDATE: {
+				// seconds since the epoch
+				long nextUpdate = parseNumber(line, valStart, valEnd);
+				r._nextUpdateTimeMs = nextUpdate < 0 ? 0 : nextUpdate * 1000;
+				break;
+			}
+			case KEY_SNOW_TOTAL:
+				r._snowTotals = getValues(line, valStart, valEnd);
+				r._snowTotalValues = getNumbers(r._snowTotals);
+				break;
+			case KEY_SNOW_DAILY:
+				r._dailySnow = getValues(line, valStart, valEnd);
+				r._dailySnowValues = getNumbers(r._dailySnow);
+				break;
+			case KEY_TEMP_READINGS:
+				r._tempReadings = getValues(line, valStart, valEnd);
+				break;
+			}
+		}
+
+		/**
+		 * Switches to collecting the lines of a delta response
+		 * @param base version the delta is against
+		 */
+		private void startDelta(String base) {
+			mDelta = true;
+			/*
+			 * The report.delta line must come first
+			 */
+			mLines.clear();
+			if (mPrevious == null || !base.equals(mPrevious._version)) {
+				mDeltaMismatch = true;
+			}
+		}
+
+		/**
+		 * @return the key of a key=value line, or null if line has no key
+		 */
+		private static String getKey(String line) {
+			int sep = line.indexOf('=');
+			return sep < 0 ? null : line.substring(0, sep).trim();
+		}
+
+		/**
+		 * @return base with each line replaced by the line in delta with the
+		 * same key, followed by the lines in delta for keys not in base
+		 */
+		static ArrayList<String> mergeLines(String base[], ArrayList<String> delta) {
+			LinkedHashMap<String, String> changes = new LinkedHashMap<String, String>();
+			for (String line : delta) {
+				String key = getKey(line);
+				if (key != null) {
+					changes.put(key, line);
+				}
+			}
+			HashSet<String> replaced = new HashSet<String>();
+			ArrayList<String> merged = new ArrayList<String>(base.length + changes.size());
+			for (String line : base) {
+				String key = getKey(line);
+				if (key != null && (changes.containsKey(key) || replaced.contains(key))) {
+					String change = changes.remove(key);
+					if (change != null) {
+						merged.add(change);
+						replaced.add(key);
 					}
+				} else {
+					merged.add(line);
 				}
+			}
+			merged.addAll(changes.values());
+			return merged;
+		}
+
+		/**
+		 * Parses a weather.forecast.(when|when-exact|desc).index line
+		 * @return false if the key is not a forecast key
+		 */
+		private boolean parseForecast(String line, int keyStart, int keyEnd,
+				int valStart, int valEnd) {
+			if (!line.startsWith(FORECAST_PREFIX, keyStart)) {
+				return false;
+			}
+			int field = keyStart + FORECAST_PREFIX.length();
+			String fieldName;
+			if (line.startsWith(FORECAST_WHEN, field)) {
+				fieldName = FORECAST_WHEN;
+			} else if (line.startsWith(FORECAST_WHEN_EXACT, field)) {
+				fieldName = FORECAST_WHEN_EXACT;
+			} else if (line.startsWith(FORECAST_DESC, field)) {
+				fieldName = FORECAST_DESC;
 			} else {
-				Log.e("Error invalid line from report URL("
-						+ l.getReportUrlPath() + " line: " + line);
+				return false;
 			}
+			long idx = parseNumber(line, field + fieldName.length(), keyEnd);
+			if (idx < 0) {
+				return false;
+			}
+			if (idx > Integer.MAX_VALUE) {
+				return false;
+			}
+			int i = getForecastSlot((int)idx);
+			if (fieldName == FORECAST_WHEN) {
+				mForecastWhen[i] = line.substring(valStart, valEnd);
+			} else if (fieldName == FORECAST_WHEN_EXACT) {
+				long exact = parseNumber(line, valStart, valEnd);
+				mForecastExact[i] = exact < 0 ? 0 : exact;
+			} else {
+				mForecastDesc[i] = line.substring(valStart, valEnd).intern();
+			}
+			return true;
 		}
 
-		for( int i = 0; i < when.length && i < desc.length ; i++ ) {
-			if( when[i] != null && when[i].length() > 0 &&
-					desc[i] != null && desc[i].length() > 0 )
-				r._weather.add(new Weather(when[i], whenExact[i], desc[i],r.getSnowUnits()));
+		/**
+		 * @return the slot holding the forecast period with the server index
+		 * index, adding one if there is none yet.  Indexes may be sparse and
+		 * in any order.
+		 */
+		private int getForecastSlot(int index) {
+			for (int i = 0; i < mForecastCount; i++) {
+				if (mForecastIndex[i] == index) {
+					return i;
+				}
+			}
+			if (mForecastCount == mForecastIndex.length) {
+				int size = mForecastCount * 2;
+				int newIndex[] = new int[size];
+				System.arraycopy(mForecastIndex, 0, newIndex, 0, mForecastCount);
+				mForecastIndex = newIndex;
+				String newWhen[] = new String[size];
+				System.arraycopy(mForecastWhen, 0, newWhen, 0, mForecastCount);
+				mForecastWhen = newWhen;
+				long newExact[] = new long[size];
+				System.arraycopy(mForecastExact, 0, newExact, 0, mForecastCount);
+				mForecastExact = newExact;
+				String newDesc[] = new String[size];
+				System.arraycopy(mForecastDesc, 0, newDesc, 0, mForecastCount);
+				mForecastDesc = newDesc;
+			}
+			int slot = mForecastCount++;
+			mForecastIndex[slot] = index;
+			mForecastWhen[slot] = null;
+			mForecastExact[slot] = 0;
+			mForecastDesc[slot] = null;
+			return slot;
 		}
 
-		r._serverInfo = server.getServerInfo();
-		return r;
+		/**
+		 * Stores the forecast periods with both a name and a description in the
+		 * report, ordered by server index
+		 */
+		private void finishForecast() {
+			int order[] = new int[mForecastCount];
+			int count = 0;
+			for (int i = 0; i < mForecastCount; i++) {
+				if (mForecastWhen[i] == null || mForecastWhen[i].length() == 0 ||
+						mForecastDesc[i] == null || mForecastDesc[i].length() == 0) {
+					continue;
+				}
+				/*
+				 * Insertion sort, there are only a handful of periods
+				 */
+				int j = count++;
+				while (j > 0 && mForecastIndex[order[j - 1]] > mForecastIndex[i]) {
+					order[j] = order[j - 1];
+					j--;
+				}
+				order[j] = i;
+			}
+			Report r = mReport;
+			r._forecastWhen = new String[count];
+			r._forecastExact = new long[count];
+			r._forecastDesc = new String[count];
+			for (int i = 0; i < count; i++) {
+				r._forecastWhen[i] = mForecastWhen[order[i]];
+				r._forecastExact[i] = mForecastExact[order[i]];
+				r._forecastDesc[i] = mForecastDesc[order[i]];
+			}
+		}
+
+		/**
+		 * @param serverInfo info of the server the report came from
+		 * @return the report built from all lines passed to parseLine()
+		 */
+		Report finish(WakeMeSkiServerInfo serverInfo) {
+			if (mDelta) {
+				if (mDeltaMismatch) {
+					return null;
+				}
+				ReportParser merged = new ReportParser(mReport._resort, mReport._requestUrl, null);
+				merged.setFetchTimeMs(mFetchTimeMs);
+				for (String line : mergeLines(mPrevious._lines, mLines)) {
+					merged.parseLine(line);
+				}
+				return merged.finish(serverInfo);
+			}
+			finishForecast();
+			mReport._serverInfo = serverInfo;
+			mReport._lines = mLines.toArray(new String[mLines.size()]);
+			mReport._loadTimeMs = mFetchTimeMs > 0 ? mFetchTimeMs : System.currentTimeMillis();
+			return mReport;
+		}
 	}
 
-	private static HashMap<String, Integer> _icons;
-	static {
-		_icons = new HashMap<String, Integer>();
-
-		// nfew = mostly clear, evening
-		// nbkn = mostly cloudy, evening
-		// nsct = partly cloudy, evening
-		_icons.put("nfew", new Integer(R.drawable.moon_parly_cloudy));
-		_icons.put("nbkn", new Integer(R.drawable.moon_mostly_cloudy));
-		_icons.put("nsct", new Integer(R.drawable.moon_parly_cloudy));
-
-		// few = sunny, day
-		// skc = totally sunny
-		_icons.put("few", new Integer(R.drawable.sunny));
-		_icons.put("skc", new Integer(R.drawable.sunny));
-
-		// sct = mostly sunny, day
-		_icons.put("sct", new Integer(R.drawable.mostly_sunny));
-
-		// bkn = partly sunny, day
-		// sct = partly cloudy
-		_icons.put("bkn", new Integer(R.drawable.partly_sunny));
-		_icons.put("sct", new Integer(R.drawable.partly_sunny));
-
-		// nskc = night clear
-		_icons.put("nskc", new Integer(R.drawable.moon_clear));
-
-		// nsn = chance of snow, evening
-		// sn = chance of snow, day
-		// nsn = night snow
-		_icons.put("nsn", new Integer(R.drawable.snow));
-		_icons.put("sn", new Integer(R.drawable.snow));
-		_icons.put("nsn", new Integer(R.drawable.snow));
-
-		// blizzard
-		_icons.put("blizzard", new Integer(R.drawable.snow));
-
-		// rasn = chance rain/snow, day (combine rain and snow icons)
-		// nrasn = chance rain/snow, night
-		// raip = rain / sleet
-		_icons.put("rasn", new Integer(R.drawable.rain_snow));
-		_icons.put("nrasn", new Integer(R.drawable.rain_snow));
-		_icons.put("raip", new Integer(R.drawable.rain_snow));
-
-		// nra = night rain
-		// nshra = night showers
-		// ra = rain
-		_icons.put("ra", new Integer(R.drawable.rain));
-		_icons.put("nra", new Integer(R.drawable.rain));
-		_icons.put("nshra", new Integer(R.drawable.rain));
-
-		// hi_nshwrs = high night showers
-		// hi_shwrs = high day showers showers
-		// shra = showers
-		_icons.put("hi_nshwrs", new Integer(R.drawable.rain));
-		_icons.put("hi_shwrs", new Integer(R.drawable.rain));
-		_icons.put("shra", new Integer(R.drawable.rain));
-
-		// ovc = overcast
-		// novc = night overcast
-		_icons.put("ovc", new Integer(R.drawable.cloudy));
-		_icons.put("novc", new Integer(R.drawable.cloudy));
-
-		// hi_ntsra = lighting night
-		// hi_tsra = lighting and showers
-		// ntsra = lighting night
-		// tsra = lighting and rain
-		_icons.put("hi_ntsra", new Integer(R.drawable.rain_lightning));
-		_icons.put("hi_tsra", new Integer(R.drawable.rain_lightning));
-		_icons.put("nscttsra", new Integer(R.drawable.rain_lightning));
-		_icons.put("ntsra", new Integer(R.drawable.rain_lightning));
-		_icons.put("tsra", new Integer(R.drawable.rain_lightning));
-
-		// scttsra = sun and scattered rain
-		_icons.put("scttsra", new Integer(R.drawable.sun_rain));
-
-		// mix = snow and rain
-		_icons.put("mix", new Integer(R.drawable.mix));
-
-		_icons.put("nwind", new Integer(R.drawable.night_wind));
-		_icons.put("wind", new Integer(R.drawable.wind));
-
-		// TODO fg = fog
-		// fzra = freeze
-		// hot = hot
-		// hurr = hurricane
-		// ntor = night tornado
-		// ovc = overcast
-		// sctfg = scattered fog
-		// cold = cold, day
+	/**
+	 * @return true if icon holds name at offset start
+	 */
+	private static boolean isIcon(String icon, int start, String name) {
+		return icon.regionMatches(start, name, 0, name.length());
+	}
+
+	/**
+	 * Maps an NWS icon name to its drawable, switching on the length and a
+	 * distinguishing character of the name so only one or two names are
+	 * compared and nothing is allocated.
+	 *
+	 * TODO fg = fog
+	 * fzra = freeze
+	 * hot = hot
+	 * hurr = hurricane
+	 * ntor = night tornado
+	 * sctfg = scattered fog
+	 * cold = cold, day
+	 * @return the drawable for the name held in icon[start, start + length),
+	 * R.drawable.unknown if the name is not known
+	 */
+	private static int getIconNameResId(String icon, int start, int length) {
+		switch (length) {
+		case 2:
+			// sn = chance of snow, day
+			if (isIcon(icon, start, "sn")) {
+				return R.drawable.snow;
+			}
+			// ra = rain
+			if (isIcon(icon, start, "ra")) {
+				return R.drawable.rain;
+			}
+			break;
+		case 3:
+			switch (icon.charAt(start)) {
+			case 'b':
+				// bkn = partly sunny, day
+				if (isIcon(icon, start, "bkn")) {
+					return R.drawable.partly_sunny;
+				}
+				break;
+			case 'f':
+				// few = sunny, day
+				if (isIcon(icon, start, "few")) {
+					return R.drawable.sunny;
+				}
+				break;
+			case 'm':
+				// mix = snow and rain
+				if (isIcon(icon, start, "mix")) {
+					return R.drawable.mix;
+				}
+				break;
+			case 'n':
+				// nra = night rain
+				if (isIcon(icon, start, "nra")) {
+					return R.drawable.rain;
+				}
+				// nsn = chance of snow or snow, evening
+				if (isIcon(icon, start, "nsn")) {
+					return R.drawable.snow;
+				}
+				break;
+			case 'o':
+				// ovc = overcast
+				if (isIcon(icon, start, "ovc")) {
+					return R.drawable.cloudy;
+				}
+				break;
+			case 's':
+				// skc = totally sunny
+				if (isIcon(icon, start, "skc")) {
+					return R.drawable.sunny;
+				}
+				// sct = partly cloudy
+				if (isIcon(icon, start, "sct")) {
+					return R.drawable.partly_sunny;
+				}
+				break;
+			}
+			break;
+		case 4:
+			switch (icon.charAt(start + 1)) {
+			case 'f':
+				// nfew = mostly clear, evening
+				if (isIcon(icon, start, "nfew")) {
+					return R.drawable.moon_parly_cloudy;
+				}
+				break;
+			case 's':
+				// nsct = partly cloudy, evening
+				if (isIcon(icon, start, "nsct")) {
+					return R.drawable.moon_parly_cloudy;
+				}
+				// nskc = night clear
+				if (isIcon(icon, start, "nskc")) {
+					return R.drawable.moon_clear;
+				}
+				// tsra = lighting and rain
+				if (isIcon(icon, start, "tsra")) {
+					return R.drawable.rain_lightning;
+				}
+				break;
+			case 'b':
+				// nbkn = mostly cloudy, evening
+				if (isIcon(icon, start, "nbkn")) {
+					return R.drawable.moon_mostly_cloudy;
+				}
+				break;
+			case 'o':
+				// novc = night overcast
+				if (isIcon(icon, start, "novc")) {
+					return R.drawable.cloudy;
+				}
+				break;
+			case 'a':
+				// rasn = chance rain/snow, day (combine rain and snow icons)
+				if (isIcon(icon, start, "rasn")) {
+					return R.drawable.rain_snow;
+				}
+				// raip = rain / sleet
+				if (isIcon(icon, start, "raip")) {
+					return R.drawable.rain_snow;
+				}
+				break;
+			case 'h':
+				// shra = showers
+				if (isIcon(icon, start, "shra")) {
+					return R.drawable.rain;
+				}
+				break;
+			case 'i':
+				if (isIcon(icon, start, "wind")) {
+					return R.drawable.wind;
+				}
+				break;
+			}
+			break;
+		case 5:
+			switch (icon.charAt(start + 1)) {
+			case 'r':
+				// nrasn = chance rain/snow, night
+				if (isIcon(icon, start, "nrasn")) {
+					return R.drawable.rain_snow;
+				}
+				break;
+			case 's':
+				// nshra = night showers
+				if (isIcon(icon, start, "nshra")) {
+					return R.drawable.rain;
+				}
+				break;
+			case 't':
+				// ntsra = lighting night
+				if (isIcon(icon, start, "ntsra")) {
+					return R.drawable.rain_lightning;
+				}
+				break;
+			case 'w':
+				if (isIcon(icon, start, "nwind")) {
+					return R.drawable.night_wind;
+				}
+				break;
+			}
+			break;
+		case 7:
+			// hi_tsra = lighting and showers
+			if (isIcon(icon, start, "hi_tsra")) {
+				return R.drawable.rain_lightning;
+			}
+			// scttsra = sun and scattered rain
+			if (isIcon(icon, start, "scttsra")) {
+				return R.drawable.sun_rain;
+			}
+			break;
+		case 8:
+			switch (icon.charAt(start + 3)) {
+			case 's':
+				// hi_shwrs = high day showers showers
+				if (isIcon(icon, start, "hi_shwrs")) {
+					return R.drawable.rain;
+				}
+				break;
+			case 'n':
+				// hi_ntsra = lighting night
+				if (isIcon(icon, start, "hi_ntsra")) {
+					return R.drawable.rain_lightning;
+				}
+				break;
+			case 't':
+				if (isIcon(icon, start, "nscttsra")) {
+					return R.drawable.rain_lightning;
+				}
+				break;
+			case 'z':
+				if (isIcon(icon, start, "blizzard")) {
+					return R.drawable.snow;
+				}
+				break;
+			}
+			break;
+		case 9:
+			// hi_nshwrs = high night showers
+			if (isIcon(icon, start, "hi_nshwrs")) {
+				return R.drawable.rain;
+			}
+			break;
+		}
+		return R.drawable.unknown;
+	}
+
+	/**
+	 * @param icon weather icon URL, for instance http://.../sn40.jpg
+	 * @return the drawable for the icon, R.drawable.unknown if the icon is
+	 * not known
+	 */
+	static int getWeatherIconResId(String icon) {
+		/*
+		 * The icon name is the file name without its extension or the
+		 * percentage chance of precipitation which follows the name
+		 */
+		int start = icon.lastIndexOf('/') + 1;
+		int end = icon.indexOf('.', start);
+		if (end < 0) {
+			end = icon.length();
+		}
+		for (int i = start; i < end; i++) {
+			if (Character.isDigit(icon.charAt(i))) {
+				end = i;
+				break;
+			}
+		}
+		return getIconNameResId(icon, start, end - start);
 	}
 }
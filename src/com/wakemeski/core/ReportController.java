@@ -16,21 +16,32 @@
 package com.wakemeski.core;
 
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Date;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.Context;
 import android.net.ConnectivityManager;
+import android.os.Debug;
 import android.os.Process;
 
 import com.wakemeski.Log;
+import com.wakemeski.WakeMeSki;
 import com.wakemeski.core.alert.AlertManager;
+import com.wakemeski.core.alert.AlertPollingController;
 
 /**
  * Starts a long running thread that will check for updates to resorts and get
@@ -57,25 +68,135 @@ public class ReportController implements Runnable {
 	private boolean mBusy;
 	private final Context mContext;
 	private final ResortManager mResortManager;
-	private boolean mLoadInProgress=false;
+	private final ReportStore mReportStore;
+	private final WakeMeSkiServer mServer;
 
 	/*
-	 * Make sure only one thread forces a load to start from listner register
+	 * Report loads queued or running, in the order they were queued.  All
+	 * access must be synchronized on mListeners.
 	 */
-	private final Object mSychronizeForceLoad= new Object();
+	private final ArrayList<LoadResortsAction> mPendingLoads = new ArrayList<LoadResortsAction>();
+
 	/*
-	 * The last time we loaded a resort, or 0 if a resort has never been loaded.
-	 * Using object Long to allow synchronization
+	 * True once the controller thread has restored the saved reports,
+	 * guarded by mListeners
 	 */
-	private Long   mLastResortLoadTimeMs= new Long(0);
+	private boolean mRestored = false;
 
-	boolean mForceLoadInProgress = false;
+	/*
+	 * Timings of the last completed load, guarded by mListeners
+	 */
+	private LoadTimings mLastLoadTimings = null;
 
-	private ReportController(Context c, ResortManager rm) {
+	/**
+	 * The reasons reports are requested, each with its own limit on how old a
+	 * report may be before it is re-loaded.
+	 */
+	public enum UseCase {
+		/**
+		 * Reports shown on the dashboard
+		 */
+		DASHBOARD(60 * 60 * 1000),
+		/**
+		 * The periodic snow alert check
+		 */
+		ALERT_POLL(30 * 60 * 1000),
+		/**
+		 * The wakeup alarm check, which should act on the latest data
+		 */
+		WAKE_CHECK(15 * 60 * 1000);
+
+		final long mMaxAgeMs;
+
+		UseCase(long maxAgeMs) {
+			mMaxAgeMs = maxAgeMs;
+		}
+	}
+
+	/*
+	 * Number of reports fetched at the same time by LoadResortsAction
+	 */
+	private static final int LOAD_CONCURRENCY = 4;
+
+	/*
+	 * True to count the bytes allocated by each background load for its
+	 * LoadTimings.  Off in release builds since counting slows down every
+	 * allocation.
+	 */
+	static boolean mCountAllocations = WakeMeSki.DEBUG;
+
+	/**
+	 * @param server server to load reports from, package visible so tests
+	 * can load from a StandInServer
+	 */
+	ReportController(Context c, ResortManager rm, WakeMeSkiServer server) {
 		mContext = c;
+		mReportStore = ReportStore.getInstance(c);
+		mResortManager = rm;
+		mServer = server;
 		mThread = new Thread(this);
 		mThread.start();
-		mResortManager = rm;
+	}
+
+	/**
+	 * Restores the reports saved by the last process so the first screen can
+	 * show reports without waiting for the network, and getStaleResorts()
+	 * reflects the real age of the reports.  Runs on the controller thread
+	 * before any action since reading the store may be slow.
+	 */
+	private void restoreReports() {
+		Hashtable<Resort, Report> restored = new Hashtable<Resort, Report>();
+		for( Resort res: mResortManager.getResorts() ) {
+			Report r = mReportStore.get(res);
+			if( r != null ) {
+				restored.put(res, r);
+			}
+		}
+		synchronized (mListeners) {
+			for( Resort res: restored.keySet() ) {
+				if( !mReports.containsKey(res) ) {
+					mReports.put(res, restored.get(res));
+				}
+			}
+			mRestored = true;
+		}
+		Log.d("Restored " + restored.size() + " reports");
+	}
+
+	/**
+	 * @return true if r is recent enough for useCase.  Reports with errors,
+	 * including earlier reports kept after a failed refresh, are never fresh
+	 * so they are retried.  Freshness hints from the server take
+	 * priority over the use case limit: a report is fresh while the server
+	 * says it won't change, and is never re-loaded sooner than the server's
+	 * minimum poll interval.
+	 */
+	private boolean isFresh(Report r, UseCase useCase) {
+		if( r == null || r.hasErrors() || r.hasRefreshError() ) {
+			return false;
+		}
+		long age = r.getAgeMs();
+		if( age < r.getServerInfo().getMinPollIntervalMs() ) {
+			return true;
+		}
+		long expiry = r.getServerExpiryTimeMs();
+		if( expiry > 0 ) {
+			return System.currentTimeMillis() < expiry;
+		}
+		return age < useCase.mMaxAgeMs;
+	}
+
+	/**
+	 * @return the configured resorts without a report recent enough for useCase
+	 */
+	public Resort[] getStaleResorts(UseCase useCase) {
+		ArrayList<Resort> stale = new ArrayList<Resort>();
+		for( Resort res: mResortManager.getResorts() ) {
+			if( !isFresh(mReports.get(res), useCase) ) {
+				stale.add(res);
+			}
+		}
+		return stale.toArray(new Resort[stale.size()]);
 	}
 
 
@@ -86,7 +207,7 @@ public class ReportController implements Runnable {
 	 */
 	public static synchronized ReportController getInstance(Context c, ResortManager rm) {
 		if( inst == null ) {
-			inst = new ReportController(c, rm);
+			inst = new ReportController(c, rm, WakeMeSkiServer.getInstance(c));
 		}
 		return inst;
 	}
@@ -95,6 +216,7 @@ public class ReportController implements Runnable {
 
 	@Override
 	public void run() {
+		restoreReports();
 		while (true) {
 			try {
 				Action a = mActions.take();
@@ -142,12 +264,103 @@ public class ReportController implements Runnable {
 	 * thread.  False when it should be run as the primary thread for the application
 	 */
 	public void forceLoadReports( boolean isBackground ) {
-		mForceLoadInProgress = true;
-		Log.d("Start forceLoadReports isBackground=" +isBackground);
-		Action a = new LoadResortsAction(mResortManager.getResorts(),isBackground);
-		mActions.add(a);
+		forceLoadReports(isBackground, 0);
+	}
+
+	/**
+	 * Force Re-Loads all configured reports, completing within budgetMs of this
+	 * call.  Each request is given a share of the remaining budget as its connect
+	 * and read timeout.
+	 *
+	 * When the budget runs out, resorts which have not loaded yet are passed to
+	 * listeners as reports with a timeout error (see Report.hasErrors()) and the
+	 * load completes with the data collected so far.  A timed out resort is
+	 * treated the same as one which failed for lack of a connection: it has no
+	 * snow total so it never meets an alert or wakeup preference.
+	 *
+	 * @param isBackground see forceLoadReports(boolean)
+	 * @param budgetMs total time allowed for the load, 0 for no limit
+	 */
+	public void forceLoadReports( boolean isBackground, long budgetMs ) {
+		loadResorts(mResortManager.getResorts(), isBackground, budgetMs, true);
+	}
+
+	/**
+	 * Re-loads only the resorts whose reports are too old for useCase, leaving
+	 * recent reports as they are.
+	 * @param isBackground see forceLoadReports(boolean)
+	 * @param budgetMs total time allowed for the load, 0 for no limit
+	 * @return true if a load was started, or will be decided on once the saved
+	 * reports are restored, false if all reports were recent enough
+	 */
+	public boolean refreshStaleReports( final boolean isBackground, final UseCase useCase,
+			final long budgetMs ) {
+		synchronized (mListeners) {
+			if( !mRestored ) {
+				/*
+				 * Decide once the saved reports are restored, otherwise every
+				 * resort looks stale
+				 */
+				mActions.add(new Action() {
+					@Override
+					void run() {
+						refreshStaleReports(isBackground, useCase, budgetMs);
+					}
+				});
+				return true;
+			}
+		}
+		Resort stale[] = getStaleResorts(useCase);
+		if( stale.length == 0 ) {
+			return false;
+		}
+		loadResorts(stale, isBackground, budgetMs, false);
+		return true;
 	}
 
+	/**
+	 * Queues a LoadResortsAction for resorts
+	 * @param revalidate true to ask the server for every report, even those
+	 * cached recently enough to be used without asking
+	 */
+	private void loadResorts( Resort resorts[], boolean isBackground, long budgetMs,
+			boolean revalidate ) {
+		Log.d("Loading " + resorts.length + " resorts isBackground=" + isBackground +
+				" budgetMs=" + budgetMs);
+		Deadline deadline = null;
+		if( budgetMs > 0 ) {
+			deadline = new Deadline(budgetMs);
+		}
+		LoadResortsAction load = new LoadResortsAction(resorts,isBackground,deadline,revalidate);
+		synchronized (mListeners) {
+			mPendingLoads.add(load);
+		}
+		mActions.add(load);
+	}
+
+	/**
+	 * Must be called with mListeners held
+	 * @return true if a queued or running load will deliver a report for res
+	 */
+	private boolean isLoading( Resort res ) {
+		for( LoadResortsAction load: mPendingLoads ) {
+			if( load.mUnloaded.contains(res) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * @return the timings, CPU time and allocations of the last completed
+	 * report load, or null if no load has completed
+	 */
+	LoadTimings getLastLoadTimings() {
+		synchronized (mListeners) {
+			return mLastLoadTimings;
+		}
+	}
 
 	/**
 	 * Returns a mapping of Resort->Report
@@ -156,6 +369,28 @@ public class ReportController implements Runnable {
 		return mReports;
 	}
 
+	/**
+	 * @param resortId ID of a configured resort, see Resort.getId()
+	 * @return the current report for the resort, the report saved in the
+	 * report store if none has been loaded by this process, or null if there
+	 * is no such resort or no report for it
+	 */
+	public Report getReport(String resortId) {
+		synchronized (mListeners) {
+			for( Report r: mReports.values() ) {
+				if( r.getResort().getId().equals(resortId) ) {
+					return r;
+				}
+			}
+		}
+		for( Resort res: mResortManager.getResorts() ) {
+			if( res.getId().equals(resortId) ) {
+				return mReportStore.get(res);
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Adds a Resort to monitor reports for
 	 */
@@ -186,6 +421,8 @@ public class ReportController implements Runnable {
 				rl.onUpdated();
 			}
 		}
+		mReportStore.clear();
+		mReportStore.save();
 		AlertManager am = new AlertManager(mContext);
 		am.removeAll();
 		am.close();
@@ -203,31 +440,6 @@ public class ReportController implements Runnable {
 		}
 	}
 
-	/**
-	 * @return true if the report data currently cached in the controller is stale and
-	 * should be re-loaded.  This could be because a load never completed or because it's been
-	 * too long since a load has completed (current threshold is 1 hour)
-	 */
-	private boolean reportDataCacheInvalid() {
-		boolean cacheInvalid = true;
-		Date lastLoad = null;
-		synchronized (mLastResortLoadTimeMs) {
-			if( mLastResortLoadTimeMs != 0 ) {
-				lastLoad = new Date(mLastResortLoadTimeMs);
-			}
-		}
-
-		if(lastLoad != null) {
-			Calendar oneHourAgo =Calendar.getInstance();
-			oneHourAgo.add(Calendar.HOUR,-1);
-			/*
-			 * Consider the cache invalid if the last load was more than one hour ago
-			 */
-			cacheInvalid = lastLoad.before(oneHourAgo.getTime());
-		}
-		return cacheInvalid;
-	}
-
 	/**
 	 * Adds a listener (if not already present) and updates the reports.  Updates the listener with the currently
 	 * loaded reports.  If no report load has been started yet OR if the data cached in this
@@ -237,38 +449,84 @@ public class ReportController implements Runnable {
 	 * must be run in foreground (ie if this is a service listener)
 	 */
 	public void addListenerAndUpdateReports(ReportListener listener, boolean isBackground) {
+		addListenerAndUpdateReports(listener, isBackground, UseCase.DASHBOARD, 0);
+	}
+
+	/**
+	 * Adds a listener and updates the reports as addListenerAndUpdateReports(ReportListener, boolean),
+	 * limiting any report load this starts to budgetMs.
+	 * @param budgetMs total time allowed for a report load, 0 for no limit.  See
+	 * forceLoadReports(boolean, long) for how resorts which don't load in time
+	 * are reported.
+	 */
+	public void addListenerAndUpdateReports(ReportListener listener, boolean isBackground, long budgetMs) {
+		addListenerAndUpdateReports(listener, isBackground, UseCase.DASHBOARD, budgetMs);
+	}
+
+	/**
+	 * Adds a listener (if not already present) and updates the reports.  The listener
+	 * is sent the reports which are recent enough for useCase and only the resorts
+	 * whose reports are too old (or missing) are re-loaded.
+	 * @param useCase decides how old a report may be
+	 * @param budgetMs total time allowed for a report load, 0 for no limit
+	 */
+	public void addListenerAndUpdateReports(final ReportListener listener,
+			final boolean isBackground, final UseCase useCase, final long budgetMs) {
 		synchronized (mListeners) {
-			Log.d("addListenerAndUpdateReports isBackground=" + isBackground);
-			/*
-			 * Get this listener up to date with the current status of the report load
-			 */
-			if( !reportDataCacheInvalid() ) {
+			if( !mRestored ) {
 				/*
-				 * Simulate loading status
+				 * The saved reports are still being restored on the controller
+				 * thread.  Show the listener a load is under way and update it
+				 * from the controller thread once they are restored.
 				 */
 				listener.onLoading(true);
-				for(Report r : mReports.values()) {
-					listener.onAdded(r);
+				mActions.add(new Action() {
+					@Override
+					void run() {
+						addListenerAndUpdateReports(listener, isBackground, useCase, budgetMs);
+					}
+				});
+				return;
+			}
+			Log.d("addListenerAndUpdateReports isBackground=" + isBackground + " useCase=" + useCase);
+			/*
+			 * Stale resorts which a queued or running load has yet to deliver
+			 * are left to that load.  The rest, such as reports too old for
+			 * this use case but recent enough for the load in progress, get a
+			 * load of their own which runs after it.
+			 */
+			ArrayList<Resort> toLoad = new ArrayList<Resort>();
+			for( Resort res: getStaleResorts(useCase) ) {
+				if( !isLoading(res) ) {
+					toLoad.add(res);
 				}
-				if( !mLoadInProgress ) {
-					listener.onLoading(false);
+			}
+			/*
+			 * Get this listener up to date with the current status of the report load.
+			 * Reports which are too old are left for the loads so they
+			 * aren't acted on.
+			 */
+			listener.onLoading(true);
+			for(Report r : mReports.values()) {
+				if( isFresh(r, useCase) ) {
+					listener.onAdded(r);
 				}
-				listener.onUpdated();
 			}
+			if( mPendingLoads.isEmpty() && toLoad.size() == 0 ) {
+				listener.onLoading(false);
+			}
+			listener.onUpdated();
 			mListeners.add(listener);
-		}
 
-		/*
-		 * Make sure only one thread can check for cache invalid and force report load
-		 * at a time, that way we won't ever end up with two threads requesting report
-		 * load at the same time.
-		 */
-		synchronized (mSychronizeForceLoad) {
-			if(reportDataCacheInvalid() && !mForceLoadInProgress) {
-				forceLoadReports(isBackground);
+			/*
+			 * Queued while holding mListeners so two listeners registering
+			 * at once never load the same resorts twice
+			 */
+			if( toLoad.size() != 0 ) {
+				loadResorts(toLoad.toArray(new Resort[toLoad.size()]), isBackground, budgetMs,
+						false);
 			}
 		}
-
 	}
 
 	/**
@@ -327,14 +585,11 @@ public class ReportController implements Runnable {
 			ConnectivityManager cm =
 				(ConnectivityManager)c.getSystemService(Context.CONNECTIVITY_SERVICE);
 
-			WakeMeSkiServer srv = new WakeMeSkiServer(mContext);
-			Report r = Report.loadReport(c, cm, resort, srv);
-			long time = Calendar.getInstance().getTimeInMillis();
-			synchronized (mLastResortLoadTimeMs) {
-				mLastResortLoadTimeMs = time;
-			}
+			Report r = Report.loadReport(c, cm, resort, mServer);
+			mReportStore.put(r);
+			mReportStore.save();
 			AlertManager am = new AlertManager(mContext);
-			am.addAlerts(r, srv);
+			am.addAlerts(r);
 			synchronized (mListeners) {
 				mReports.put(resort, r);
 				Log.d("AddResortAction added resort " + resort + " notifying listners");
@@ -357,6 +612,8 @@ public class ReportController implements Runnable {
 
 		@Override
 		public void run() {
+			mReportStore.remove(r);
+			mReportStore.save();
 			synchronized (mListeners) {
 				mReports.remove(r);
 
@@ -375,13 +632,65 @@ public class ReportController implements Runnable {
 	class LoadResortsAction extends Action {
 		Resort[] resorts;
 		boolean mIsBackground;
+		/*
+		 * Time limit for the whole load or null if there is none
+		 */
+		Deadline mDeadline;
+		/*
+		 * True when reports must be revalidated with the server
+		 */
+		boolean mRevalidate;
+		/*
+		 * Resorts whose reports have not been delivered yet, guarded by mListeners
+		 */
+		final HashSet<Resort> mUnloaded;
+		LoadTimings mTimings;
 
-		LoadResortsAction(Resort r[], boolean isBackground ) {
+		LoadResortsAction(Resort r[], boolean isBackground, Deadline deadline,
+				boolean revalidate ) {
 			resorts = r;
 			mIsBackground = isBackground;
+			mDeadline = deadline;
+			mRevalidate = revalidate;
+			mUnloaded = new HashSet<Resort>(Arrays.asList(r));
 		}
+
 		@Override
 		void run() {
+			mTimings = new LoadTimings();
+			long cpuStartNs = Debug.threadCpuTimeNanos();
+			boolean countAllocations = mIsBackground && mCountAllocations;
+			if( countAllocations ) {
+				Debug.resetGlobalAllocSize();
+				Debug.startAllocCounting();
+			}
+			try {
+				load();
+			} finally {
+				mTimings.addThreadCpuNs(cpuStartNs);
+				if( countAllocations ) {
+					Debug.stopAllocCounting();
+					mTimings.setAllocatedBytes(Debug.getGlobalAllocSize());
+				}
+				Log.i("Report load timings: " + mTimings);
+				synchronized (mListeners) {
+					mLastLoadTimings = mTimings;
+				}
+
+				/*
+				 * Notify listeners once the last queued load is complete
+				 */
+				synchronized (mListeners) {
+					mPendingLoads.remove(this);
+					if( mPendingLoads.isEmpty() ) {
+						for(ReportListener l: mListeners)
+							l.onLoading(false);
+					}
+				}
+			}
+		}
+
+		private void load() {
 
 			/**
 			 * See <a href="https://github.com/dwalkes/WakeMeSki/issues/#issue/20">
@@ -398,63 +707,339 @@ public class ReportController implements Runnable {
 			Context c = ReportController.this.mContext;
 			ConnectivityManager cm =
 				(ConnectivityManager)c.getSystemService(Context.CONNECTIVITY_SERVICE);
-
-
+			long receivedBytes = HttpUtils.getReceivedBytes();
+			long decodedBytes = HttpUtils.getDecodedBytes();
+			if( mDeadline != null ) {
+				Log.d("Loading reports with " + mDeadline);
+			}
 
 			/*
 			 * Notify listeners we are now loading
 			 */
 			synchronized (mListeners) {
 				/*
-				 * Remove all reports in preparation for reload
+				 * Keep showing the current reports while they reload, dropping
+				 * resorts which are no longer configured and filling in any
+				 * missing reports from the report store.  resorts may be only
+				 * the stale ones so check against all configured resorts.
 				 */
-				mReports.clear();
+				Resort configured[] = mResortManager.getResorts();
+				mReports.keySet().retainAll(Arrays.asList(configured));
+				for( Resort res: configured ) {
+					if( !mReports.containsKey(res) ) {
+						Report stored = mReportStore.get(res);
+						if( stored != null ) {
+							mReports.put(res, stored);
+						}
+					}
+				}
 
 				for(ReportListener l: mListeners) {
 					/*
-					 * Send an updated message to show the reports list was cleared
+					 * Send an updated message to show the last known reports
 					 */
 					l.onUpdated();
 					l.onLoading(true);
 				}
-				mLoadInProgress=true;
 			}
 
+			WakeMeSkiServer server = mServer;
+			AlertManager am = new AlertManager(mContext);
+			WakeMeSkiServerInfo info = getServerInfo(server);
+			if( info != null ) {
+				AlertPollingController.getInstance(mContext).setServerMinPollIntervalMs(
+						info.getMinPollIntervalMs());
+			}
+			mTimings.endPhase("serverInfo");
+
 			/*
-			 * Load each report and notify listners
+			 * Load as many reports as possible with batch requests when the server
+			 * supports them, then fall back to individual requests for the rest
 			 */
-			WakeMeSkiServer server = new WakeMeSkiServer(mContext);
-			AlertManager am = new AlertManager(mContext);
-			for( Resort res: resorts ) {
-				Report r = Report.loadReport(c, cm, res, server);
-				long time = Calendar.getInstance().getTimeInMillis();
-				synchronized (mLastResortLoadTimeMs) {
-					mLastResortLoadTimeMs = time;
-				}
-				am.addAlerts(r, server);
-				synchronized (mListeners) {
-					mReports.put(res, r);
-					for(ReportListener l: mListeners) {
-						l.onAdded(r);
-						l.onUpdated();
-					}
+			boolean loaded[] = new boolean[resorts.length];
+			if( info != null ) {
+				loaded = loadBatched(server, info, am);
+			}
+			mTimings.endPhase("batch");
+			ArrayList<Resort> remaining = new ArrayList<Resort>();
+			for( int i = 0; i < resorts.length; i++ ) {
+				if( !loaded[i] ) {
+					remaining.add(resorts[i]);
 				}
 			}
+			/*
+			 * Without server info the deadline has passed and the individual
+			 * loads only report timeouts, the defaults are never used to parse
+			 */
+			loadIndividually(c, cm, remaining, server,
+					info != null ? info : new WakeMeSkiServerInfo(), am);
+			mTimings.endPhase("individual");
+
 			/*
 			 * Update alerts
 			 */
 			am.handleNotifications();
 			am.close();
-
+			mReportStore.save();
+			mTimings.endPhase("alerts");
 			/*
-			 * Notify listeners that loading is complete
+			 * Bytes fetched by every request made while the load ran
 			 */
+			mTimings.setBytes(HttpUtils.getReceivedBytes() - receivedBytes,
+					HttpUtils.getDecodedBytes() - decodedBytes);
+			Log.i("Hedged requests: " + server.getHedgeStats());
+			Log.i("Response cache: " + server.getResponseCache().getStats());
+		}
+
+		/**
+		 * Stores a newly loaded report, adds its alerts and notifies listeners.
+		 * Must be called on the controller thread.
+		 */
+		private void reportLoaded(Resort res, Report r, AlertManager am) {
 			synchronized (mListeners) {
-				mLoadInProgress=false;
-				mForceLoadInProgress=false;
-				for(ReportListener l: mListeners)
-					l.onLoading(false);
+				Report previous = mReports.get(res);
+				if( r.hasErrors() && previous != null && !previous.hasErrors() ) {
+					/*
+					 * Keep showing the last good report, its age shows it is out
+					 * of date.  The refresh error it carries keeps the wakeup
+					 * check from acting on old data.
+					 */
+					Log.i("Unable to refresh " + res + ", keeping report from " +
+							previous.getAgeMs() + "ms ago");
+					r = previous.withRefreshError(r);
+				} else {
+					/*
+					 * Stored first, while the report still holds the response
+					 * lines it drops once its values are read
+					 */
+					mReportStore.put(r);
+					am.addAlerts(r);
+				}
+				mReports.put(res, r);
+				mUnloaded.remove(res);
+				for(ReportListener l: mListeners) {
+					l.onAdded(r);
+					l.onUpdated();
+				}
+			}
+		}
+
+		/**
+		 * Gets the server info, waiting no longer than a fair share of the
+		 * time left before mDeadline if the server info has to be fetched
+		 * @return the server info or null if the deadline has already passed
+		 */
+		private WakeMeSkiServerInfo getServerInfo(WakeMeSkiServer server) {
+			if( mDeadline == null ) {
+				return server.getServerInfo();
+			}
+			if( mDeadline.isExpired() ) {
+				Log.w("Deadline reached before getting server info");
+				return null;
+			}
+			/*
+			 * Leave time for the report requests which follow
+			 */
+			return server.getServerInfo(
+					mDeadline.getRequestTimeoutMs(resorts.length + 1, LOAD_CONCURRENCY));
+		}
+
+		/**
+		 * @return the report to request the changes since for res, the last
+		 * good report in the report store which unlike the reports in mReports
+		 * still holds its response lines, or null if there is none
+		 */
+		private Report getDeltaBase(Resort res) {
+			return mReportStore.get(res);
+		}
+
+		/**
+		 * Loads reports with batch requests of up to report.batch.max resorts
+		 * each, if the server supports them.  Each report is passed to listeners
+		 * as soon as its part of the batch response has been read.
+		 * @param info server info from getServerInfo()
+		 * @return an array with true at each index of resorts which was loaded
+		 */
+		private boolean[] loadBatched(final WakeMeSkiServer server, WakeMeSkiServerInfo info,
+				final AlertManager am) {
+			Report previous[] = new Report[resorts.length];
+			for( int i = 0; i < resorts.length; i++ ) {
+				previous[i] = getDeltaBase(resorts[i]);
+			}
+			return new BatchReportLoader(server, info).loadInBatches(resorts, previous,
+					info.getReportBatchMax(),
+					new BatchReportLoader.Listener() {
+						@Override
+						public void onReportLoaded(int index, Report r) {
+							reportLoaded(resorts[index], r, am);
+						}
+					}, mDeadline);
+		}
+
+		/**
+		 * Loads each report with its own request, up to LOAD_CONCURRENCY at a time
+		 */
+		private void loadIndividually(Context c, ConnectivityManager cm,
+				ArrayList<Resort> toLoad, WakeMeSkiServer server, WakeMeSkiServerInfo info,
+				AlertManager am) {
+			if( toLoad.size() == 0 ) {
+				return;
+			}
+			ExecutorService executor = Executors.newFixedThreadPool(
+					Math.min(LOAD_CONCURRENCY, toLoad.size()),
+					new LoadThreadFactory(mIsBackground));
+			ArrayList<Future<Report>> loads = new ArrayList<Future<Report>>(toLoad.size());
+			DiskResponseCache diskCache = server.getResponseCache();
+			RevalidationCache cache = mRevalidate ? diskCache.getRevalidatingView() : diskCache;
+			AtomicInteger pending = new AtomicInteger(toLoad.size());
+			for( Resort res: toLoad ) {
+				Report previous = getDeltaBase(res);
+				loads.add(executor.submit(new LoadReportTask(c, cm, res, server, info,
+						cache, previous, mDeadline, pending, mTimings)));
+			}
+
+			/*
+			 * Notify listeners in resort order as each report completes.  Alerts
+			 * are added here on the controller thread since the AlertManager
+			 * database is not shared between threads.
+			 */
+			for( int i = 0; i < loads.size(); i++ ) {
+				Resort res = toLoad.get(i);
+				try {
+					Report r;
+					if( mDeadline == null ) {
+						r = loads.get(i).get();
+					} else {
+						r = loads.get(i).get(mDeadline.remainingMs(), TimeUnit.MILLISECONDS);
+					}
+					reportLoaded(res, r, am);
+				} catch (TimeoutException te) {
+					/*
+					 * Out of time, keep the reports which have already finished
+					 * and report the rest as timed out so the load completes
+					 * with the data collected so far
+					 */
+					Log.w("Deadline reached with " + (loads.size() - i) + " reports outstanding");
+					for( int j = i; j < loads.size(); j++ ) {
+						Future<Report> load = loads.get(j);
+						if( load.isDone() && !load.isCancelled() ) {
+							try {
+								reportLoaded(toLoad.get(j), load.get(), am);
+								continue;
+							} catch (ExecutionException ee) {
+								Log.e("error loading report for resort " + toLoad.get(j),
+										ee.getCause());
+								reportLoaded(toLoad.get(j),
+										Report.newErrorReport(toLoad.get(j), ee.getCause()), am);
+								continue;
+							} catch (InterruptedException ie) {
+								Thread.currentThread().interrupt();
+							}
+						}
+						load.cancel(true);
+						mTimings.addTimedOut();
+						reportLoaded(toLoad.get(j), Report.newTimedOutReport(c, toLoad.get(j)), am);
+					}
+					break;
+				} catch (ExecutionException ee) {
+					Log.e("error loading report for resort " + res, ee.getCause());
+					reportLoaded(res, Report.newErrorReport(res, ee.getCause()), am);
+				} catch (InterruptedException ie) {
+					Log.w("interrupted loading reports", ie);
+					Thread.currentThread().interrupt();
+					break;
+				}
 			}
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Loads a single report on one of the LoadResortsAction worker threads
+	 */
+	class LoadReportTask implements Callable<Report> {
+		private final Context mTaskContext;
+		private final ConnectivityManager mConnectivityManager;
+		private final Resort mResort;
+		private final WakeMeSkiServer mServer;
+		private final WakeMeSkiServerInfo mServerInfo;
+		private final RevalidationCache mCache;
+		private final Report mPrevious;
+		private final Deadline mDeadline;
+		private final AtomicInteger mPending;
+		private final LoadTimings mTimings;
+
+		/**
+		 * @param serverInfo info of server fetched at the start of the load
+		 * @param cache response cache to load with
+		 * @param previous last report for r to request changes since, or null
+		 * @param deadline time limit for the whole load or null for none
+		 * @param pending count of reports in the load not yet completed, shared
+		 * between tasks to divide the remaining time
+		 * @param timings timings of the load, the CPU time of the task is added
+		 */
+		LoadReportTask(Context c, ConnectivityManager cm, Resort r, WakeMeSkiServer server,
+				WakeMeSkiServerInfo serverInfo, RevalidationCache cache, Report previous,
+				Deadline deadline, AtomicInteger pending, LoadTimings timings) {
+			mTaskContext = c;
+			mConnectivityManager = cm;
+			mResort = r;
+			mServer = server;
+			mServerInfo = serverInfo;
+			mCache = cache;
+			mPrevious = previous;
+			mDeadline = deadline;
+			mPending = pending;
+			mTimings = timings;
+		}
+
+		@Override
+		public Report call() {
+			long cpuStartNs = Debug.threadCpuTimeNanos();
+			try {
+				int timeoutMs = 0;
+				if( mDeadline != null ) {
+					if( mDeadline.isExpired() ) {
+						return Report.newTimedOutReport(mTaskContext, mResort);
+					}
+					timeoutMs = mDeadline.getRequestTimeoutMs(mPending.get(), LOAD_CONCURRENCY);
+				}
+				return Report.loadReport(mTaskContext, mConnectivityManager, mResort, mServer,
+						mServerInfo, mCache, timeoutMs, mPrevious);
+			} finally {
+				mPending.decrementAndGet();
+				mTimings.addThreadCpuNs(cpuStartNs);
+			}
+		}
+	}
+
+	/**
+	 * Creates report load worker threads with the same priority as the controller
+	 * thread.  See <a href="https://github.com/dwalkes/WakeMeSki/issues/#issue/20">
+	 * issue 20</a>
+	 */
+	static class LoadThreadFactory implements ThreadFactory {
+		private final boolean mIsBackground;
+		private int mCount = 0;
+
+		LoadThreadFactory(boolean isBackground) {
+			mIsBackground = isBackground;
+		}
+
+		@Override
+		public synchronized Thread newThread(final Runnable r) {
+			mCount++;
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(mIsBackground ?
+							Process.THREAD_PRIORITY_BACKGROUND :
+							Process.THREAD_PRIORITY_DEFAULT);
+					r.run();
+				}
+			}, "ReportLoader-" + mCount);
+			t.setDaemon(true);
+			return t;
 		}
 	}
 
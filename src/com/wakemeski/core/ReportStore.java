@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2010 Dan Walkes, Andy Doan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wakemeski.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+
+import com.wakemeski.Log;
+
+/**
+ * Keeps the last successfully loaded report for each resort in persistent
+ * storage, so reports can be shown right away (and without a connection)
+ * while they are refreshed from the server.
+ *
+ * Reports are saved as the server response they were parsed from and
+ * re-parsed when restored.  The store file starts with STORE_VERSION; a file
+ * with any other version is ignored.  It holds a table of the distinct server
+ * infos followed by each report:
+ * <pre>
+ * int version
+ * int server info count, server infos
+ * int report count, for each: label, request URL, load time, server info
+ * index, line count, lines
+ * </pre>
+ */
+public class ReportStore {
+	private static final String STORE_FILE = "reports.dat";
+
+	/**
+	 * Version of the store file format, change when the format changes
+	 */
+	private static final int STORE_VERSION = 1;
+
+	private static ReportStore mInstance = null;
+
+	private final Context mContext;
+
+	/*
+	 * Saved reports keyed by location label
+	 */
+	private HashMap<String, StoredReport> mReports = new HashMap<String, StoredReport>();
+	private boolean mDirty = false;
+	private boolean mRead = false;
+
+	/**
+	 * A report as saved in the store
+	 */
+	static class StoredReport {
+		final String mRequestUrl;
+		final long mLoadTimeMs;
+		final String[] mLines;
+		final WakeMeSkiServerInfo mServerInfo;
+
+		StoredReport(Report r) {
+			this(r.getRequestURL(), r.getLoadTimeMs(), r.getLines(), r.getServerInfo());
+		}
+
+		StoredReport(String requestUrl, long loadTimeMs, String[] lines,
+				WakeMeSkiServerInfo serverInfo) {
+			mRequestUrl = requestUrl;
+			mLoadTimeMs = loadTimeMs;
+			mLines = lines;
+			mServerInfo = serverInfo;
+		}
+	}
+
+	public static synchronized ReportStore getInstance(Context c) {
+		if (mInstance == null) {
+			mInstance = new ReportStore(c.getApplicationContext());
+		}
+		return mInstance;
+	}
+
+	/**
+	 * The saved reports are read on first use rather than here, so the store
+	 * can be created on the UI thread
+	 */
+	private ReportStore(Context c) {
+		mContext = c;
+	}
+
+	/**
+	 * Reads the saved reports if they have not been read yet
+	 */
+	private void ensureRead() {
+		if (!mRead) {
+			mRead = true;
+			read();
+		}
+	}
+
+	/**
+	 * @return the last report saved for resort or null if there is none
+	 */
+	public synchronized Report get(Resort resort) {
+		ensureRead();
+		StoredReport s = mReports.get(resort.getLocation().getLabel());
+		if (s == null) {
+			return null;
+		}
+		return Report.fromStore(resort, s.mRequestUrl, s.mLines, s.mLoadTimeMs, s.mServerInfo);
+	}
+
+	/**
+	 * Saves r as the last known report for its resort.  Reports with errors
+	 * are ignored so the last good report is kept, as are reports kept after
+	 * a failed refresh, which were saved when they loaded.  Must be called
+	 * before any of r's values are read, see Report.getLines().
+	 */
+	public synchronized void put(Report r) {
+		if (r.hasErrors() || r.hasRefreshError() || r.getLines() == null) {
+			return;
+		}
+		ensureRead();
+		mReports.put(r.getResort().getLocation().getLabel(), new StoredReport(r));
+		mDirty = true;
+	}
+
+	public synchronized void remove(Resort resort) {
+		ensureRead();
+		if (mReports.remove(resort.getLocation().getLabel()) != null) {
+			mDirty = true;
+		}
+	}
+
+	public synchronized void clear() {
+		ensureRead();
+		mReports.clear();
+		mDirty = true;
+	}
+
+	/**
+	 * Writes the store to persistent storage if it changed since the last save
+	 */
+	public synchronized void save() {
+		if (!mDirty) {
+			return;
+		}
+		/*
+		 * Write to a temporary file and rename it over the store so a crash
+		 * part way through a save leaves the previous store intact
+		 */
+		File store = new File(mContext.getFilesDir(), STORE_FILE);
+		File tmp = new File(mContext.getFilesDir(), STORE_FILE + ".tmp");
+		DataOutputStream out = null;
+		boolean written = false;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(STORE_VERSION);
+
+			/*
+			 * Reports from the same server share one server info
+			 */
+			ArrayList<WakeMeSkiServerInfo> infos = new ArrayList<WakeMeSkiServerInfo>();
+			for (StoredReport s : mReports.values()) {
+				if (indexOf(infos, s.mServerInfo) < 0) {
+					infos.add(s.mServerInfo);
+				}
+			}
+			out.writeInt(infos.size());
+			for (WakeMeSkiServerInfo info : infos) {
+				writeServerInfo(out, info);
+			}
+
+			out.writeInt(mReports.size());
+			for (Map.Entry<String, StoredReport> entry : mReports.entrySet()) {
+				StoredReport s = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeUTF(s.mRequestUrl);
+				out.writeLong(s.mLoadTimeMs);
+				out.writeInt(indexOf(infos, s.mServerInfo));
+				out.writeInt(s.mLines.length);
+				for (String line : s.mLines) {
+					out.writeUTF(line);
+				}
+			}
+			out.close();
+			out = null;
+			written = tmp.renameTo(store);
+			if (written) {
+				mDirty = false;
+			} else {
+				Log.e("Unable to rename " + tmp + " to " + store);
+			}
+		} catch (Exception e) {
+			Log.e("Exception " + e + " writing " + STORE_FILE);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException ioe) {
+					Log.w("IO exception " + ioe + " closing output file " + STORE_FILE);
+				}
+			}
+			if (!written) {
+				tmp.delete();
+			}
+		}
+	}
+
+	/**
+	 * @return the index of info in infos compared by identity, or -1
+	 */
+	private static int indexOf(ArrayList<WakeMeSkiServerInfo> infos, WakeMeSkiServerInfo info) {
+		for (int i = 0; i < infos.size(); i++) {
+			if (infos.get(i) == info) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void writeServerInfo(DataOutputStream out, WakeMeSkiServerInfo info)
+		throws IOException {
+		out.writeInt(info.getServerVersion());
+		out.writeInt(info.getApMinSupportedVersion());
+		out.writeInt(info.getApLatestVersion());
+		out.writeInt(info.getReportBatchMax());
+		out.writeBoolean(info.supportsReportDelta());
+		out.writeLong(info.getMinPollIntervalMs());
+		String regex[] = info.getAlertExpressions();
+		out.writeInt(regex.length);
+		for (String r : regex) {
+			out.writeUTF(r);
+		}
+	}
+
+	private static WakeMeSkiServerInfo readServerInfo(DataInputStream in) throws IOException {
+		WakeMeSkiServerInfo info = new WakeMeSkiServerInfo();
+		info.setServerVersion(in.readInt());
+		info.setApMinSupportedVersion(in.readInt());
+		info.setApLatestVersion(in.readInt());
+		info.setReportBatchMax(in.readInt());
+		info.setReportDelta(in.readBoolean());
+		info.setMinPollIntervalMs(in.readLong());
+		String regex[] = new String[in.readInt()];
+		for (int i = 0; i < regex.length; i++) {
+			regex[i] = in.readUTF();
+		}
+		info.setAlertExpressions(regex);
+		return info;
+	}
+
+	private void read() {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(mContext.openFileInput(STORE_FILE)));
+			int version = in.readInt();
+			if (version != STORE_VERSION) {
+				Log.i("Ignoring saved reports with version " + version);
+				return;
+			}
+			WakeMeSkiServerInfo infos[] = new WakeMeSkiServerInfo[in.readInt()];
+			for (int i = 0; i < infos.length; i++) {
+				infos[i] = readServerInfo(in);
+			}
+			HashMap<String, StoredReport> reports = new HashMap<String, StoredReport>();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String label = in.readUTF();
+				String requestUrl = in.readUTF();
+				long loadTimeMs = in.readLong();
+				WakeMeSkiServerInfo info = infos[in.readInt()];
+				String lines[] = new String[in.readInt()];
+				for (int j = 0; j < lines.length; j++) {
+					lines[j] = in.readUTF();
+				}
+				reports.put(label, new StoredReport(requestUrl, loadTimeMs, lines, info));
+			}
+			mReports = reports;
+		} catch (FileNotFoundException fnf) {
+			Log.d("No saved reports");
+		} catch (Exception e) {
+			Log.e("Exception " + e + " reading " + STORE_FILE);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ioe) {
+					Log.w("IO exception closing input file " + STORE_FILE, ioe);
+				}
+			}
+		}
+	}
+}
@@ -20,6 +20,8 @@ import java.io.Serializable;
 import java.util.HashSet;
 import java.util.Set;
 
+import android.os.Parcel;
+import android.os.Parcelable;
 
 /**
  * A class containing resort information destined for persistent storage Uses
@@ -28,7 +30,7 @@ import java.util.Set;
  * @author dan
  *
  */
-public class Resort implements Serializable, Comparable<Resort> {
+public class Resort implements Serializable, Parcelable, Comparable<Resort> {
 
 	boolean wakeupEnabled = false;
 	private final Location mLocation;
@@ -50,6 +52,30 @@ public class Resort implements Serializable, Comparable<Resort> {
 
 	private static final long serialVersionUID = 0;
 
+	/*
+	 * Version of the parcel encoding, written first so a parcel from a
+	 * different encoding is rejected rather than misread
+	 */
+	private static final int PARCEL_VERSION = 1;
+
+	public static final Parcelable.Creator<Resort> CREATOR = new Parcelable.Creator<Resort>() {
+		@Override
+		public Resort createFromParcel(Parcel source) {
+			int version = source.readInt();
+			if (version != PARCEL_VERSION) {
+				throw new IllegalArgumentException("Unsupported resort parcel version " + version);
+			}
+			Resort r = new Resort(Location.CREATOR.createFromParcel(source));
+			r.wakeupEnabled = source.readInt() != 0;
+			return r;
+		}
+
+		@Override
+		public Resort[] newArray(int size) {
+			return new Resort[size];
+		}
+	};
+
 	public Resort(String label, String url) {
 		mLocation = new Location(label, url);
 	}
@@ -67,11 +93,32 @@ public class Resort implements Serializable, Comparable<Resort> {
 		return mLocation;
 	}
 
+	/**
+	 * @return an ID which identifies this resort across processes, used to
+	 * refer to a resort's report without passing the report itself.  See
+	 * ReportController.getReport(String)
+	 */
+	public String getId() {
+		return mLocation.getLabel();
+	}
+
 	@Override
 	public String toString() {
 		return mLocation.toString();
 	}
 
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	@Override
+	public void writeToParcel(Parcel dest, int flags) {
+		dest.writeInt(PARCEL_VERSION);
+		mLocation.writeToParcel(dest, flags);
+		dest.writeInt(wakeupEnabled ? 1 : 0);
+	}
+
 	@Override
 	public int compareTo(Resort another) {
 		return getResortName().compareTo(another.getResortName());
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2010 Dan Walkes, Andy Doan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wakemeski.core;
+
+/**
+ * Remembers the body and ETag/Last-Modified validators of responses fetched
+ * through HttpUtils so the next request for the same URL can be sent as a
+ * conditional GET.  When the server answers 304 Not Modified the cached body
+ * is returned instead of downloading it again.
+ *
+ * See DiskResponseCache for the implementation, which also serves recent
+ * responses without contacting the server.
+ */
+public interface RevalidationCache {
+
+	/**
+	 * A cached response body along with the validators the server sent with it
+	 */
+	public static class Entry {
+		private final String mETag;
+		private final String mLastModified;
+		private final String[] mLines;
+		private final long mTimeMs;
+
+		/**
+		 * @param timeMs time the response was fetched or last revalidated, as
+		 * returned by System.currentTimeMillis(), or 0 if unknown
+		 */
+		Entry(String etag, String lastModified, String[] lines, long timeMs) {
+			mETag = etag;
+			mLastModified = lastModified;
+			mLines = lines;
+			mTimeMs = timeMs;
+		}
+
+		/**
+		 * @return the ETag header from the cached response or null if none was sent
+		 */
+		public String getETag() {
+			return mETag;
+		}
+
+		/**
+		 * @return the Last-Modified header from the cached response or null if none was sent
+		 */
+		public String getLastModified() {
+			return mLastModified;
+		}
+
+		/**
+		 * @return the body of the cached response
+		 */
+		public String[] getLines() {
+			return mLines;
+		}
+
+		/**
+		 * @return the System.currentTimeMillis() time the server sent or last
+		 * confirmed this response, or 0 if unknown
+		 */
+		public long getTimeMs() {
+			return mTimeMs;
+		}
+	}
+
+	/**
+	 * @return the cached entry for this URL or null if the URL has not been
+	 * fetched
+	 */
+	Entry get(String url);
+
+	/**
+	 * @return a cached entry recent enough to be used without contacting the
+	 * server, or null if the server must be asked
+	 */
+	Entry getFresh(String url);
+
+	/**
+	 * Called when the server confirmed the entry for url is unchanged
+	 */
+	void markRevalidated(String url);
+
+	/**
+	 * Stores a response for url
+	 */
+	void put(String url, String etag, String lastModified, String[] lines);
+
+	/**
+	 * Called when the server confirmed (304) or replaced (200) a cached entry
+	 * @param notModified true when the cached body was used
+	 */
+	void recordRevalidation(boolean notModified);
+
+	void clear();
+}
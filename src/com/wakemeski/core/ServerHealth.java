@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2010 Dan Walkes, Andy Doan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wakemeski.core;
+
+import android.content.SharedPreferences;
+
+/**
+ * Tracks the latency and error rate of requests to one server and acts as a
+ * circuit breaker for it.
+ *
+ * The circuit starts CLOSED and requests are sent normally.  After
+ * FAILURES_TO_OPEN consecutive failures it OPENs and requests should go to
+ * another server.  Once OPEN_MS has passed the circuit is HALF_OPEN: the next
+ * request (or a background probe) is a trial which closes the circuit on
+ * success or opens it again on failure.  Each failed trial doubles how long
+ * the circuit stays open, up to MAX_OPEN_MS.
+ *
+ * The state is saved in shared preferences so an outage found by one process
+ * is remembered by the next.
+ */
+public class ServerHealth {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * Consecutive failures which open the circuit
+	 */
+	public static final int FAILURES_TO_OPEN = 3;
+
+	/**
+	 * How long the circuit stays open before a trial request is allowed
+	 */
+	public static final long OPEN_MS = 2 * 60 * 1000;
+
+	/**
+	 * Longest the circuit stays open after repeated failed trials
+	 */
+	public static final long MAX_OPEN_MS = 30 * 60 * 1000;
+
+	/*
+	 * Weight of the newest latency in the moving average
+	 */
+	private static final double LATENCY_WEIGHT = 0.2;
+
+	private static final String PREF_PREFIX = "serverHealth.";
+
+	private final String mServerUrl;
+	private State mState = State.CLOSED;
+	private int mConsecutiveFailures = 0;
+	private long mOpenedTimeMs = 0;
+	/*
+	 * Times the circuit has opened since the last successful request
+	 */
+	private int mOpenCount = 0;
+	private int mRequests = 0;
+	private int mErrors = 0;
+	private double mAverageLatencyMs = -1;
+
+	public ServerHealth(String serverUrl) {
+		mServerUrl = serverUrl;
+	}
+
+	public String getServerUrl() {
+		return mServerUrl;
+	}
+
+	public synchronized State getState() {
+		updateState();
+		return mState;
+	}
+
+	/**
+	 * @return how long the circuit stays open, OPEN_MS doubled for each time
+	 * it opened again after a failed trial, at most MAX_OPEN_MS
+	 */
+	public synchronized long getOpenMs() {
+		long openMs = OPEN_MS;
+		for (int i = 1; i < mOpenCount && openMs < MAX_OPEN_MS; i++) {
+			openMs *= 2;
+		}
+		return Math.min(openMs, MAX_OPEN_MS);
+	}
+
+	/**
+	 * Moves an open circuit to half open once getOpenMs() has passed
+	 */
+	private void updateState() {
+		if (mState == State.OPEN) {
+			long openFor = System.currentTimeMillis() - mOpenedTimeMs;
+			if (openFor < 0 || openFor >= getOpenMs()) {
+				mState = State.HALF_OPEN;
+			}
+		}
+	}
+
+	/**
+	 * @return true if requests may be sent to this server, false while the
+	 * circuit is open
+	 */
+	public synchronized boolean isAvailable() {
+		updateState();
+		return mState != State.OPEN;
+	}
+
+	/**
+	 * @return milliseconds until an open circuit becomes half open, 0 if it is
+	 * not open
+	 */
+	public synchronized long getOpenRemainingMs() {
+		updateState();
+		if (mState != State.OPEN) {
+			return 0;
+		}
+		return Math.max(0, getOpenMs() - (System.currentTimeMillis() - mOpenedTimeMs));
+	}
+
+	/**
+	 * Records a request which the server answered
+	 * @return true if this changed the state of the circuit
+	 */
+	public synchronized boolean recordSuccess(long latencyMs) {
+		mRequests++;
+		if (mAverageLatencyMs < 0) {
+			mAverageLatencyMs = latencyMs;
+		} else {
+			mAverageLatencyMs += LATENCY_WEIGHT * (latencyMs - mAverageLatencyMs);
+		}
+		mConsecutiveFailures = 0;
+		mOpenCount = 0;
+		State old = mState;
+		mState = State.CLOSED;
+		return old != mState;
+	}
+
+	/**
+	 * Records a request which could not reach the server or which the server
+	 * failed to answer
+	 * @return true if this changed the state of the circuit
+	 */
+	public synchronized boolean recordFailure() {
+		mRequests++;
+		mErrors++;
+		mConsecutiveFailures++;
+		updateState();
+		State old = mState;
+		if (mState == State.HALF_OPEN
+				|| (mState == State.CLOSED && mConsecutiveFailures >= FAILURES_TO_OPEN)) {
+			mState = State.OPEN;
+			mOpenedTimeMs = System.currentTimeMillis();
+			mOpenCount++;
+		}
+		return old != mState;
+	}
+
+	/**
+	 * @return the fraction of requests recorded by this process which failed
+	 */
+	public synchronized double getErrorRate() {
+		return mRequests == 0 ? 0 : (double) mErrors / mRequests;
+	}
+
+	/**
+	 * @return the moving average latency of successful requests, or -1 if there
+	 * have been none
+	 */
+	public synchronized long getAverageLatencyMs() {
+		return (long) mAverageLatencyMs;
+	}
+
+	/**
+	 * Restores the circuit state saved with save()
+	 */
+	public synchronized void load(SharedPreferences prefs) {
+		String state = prefs.getString(PREF_PREFIX + "state." + mServerUrl, null);
+		if (state != null) {
+			try {
+				mState = State.valueOf(state);
+			} catch (IllegalArgumentException iae) {
+				mState = State.CLOSED;
+			}
+		}
+		mConsecutiveFailures = prefs.getInt(PREF_PREFIX + "failures." + mServerUrl, 0);
+		mOpenedTimeMs = prefs.getLong(PREF_PREFIX + "opened." + mServerUrl, 0);
+		mOpenCount = prefs.getInt(PREF_PREFIX + "opens." + mServerUrl, 0);
+	}
+
+	/**
+	 * Saves the circuit state to editor, the caller is responsible for committing
+	 */
+	public synchronized void save(SharedPreferences.Editor editor) {
+		editor.putString(PREF_PREFIX + "state." + mServerUrl, mState.name());
+		editor.putInt(PREF_PREFIX + "failures." + mServerUrl, mConsecutiveFailures);
+		editor.putLong(PREF_PREFIX + "opened." + mServerUrl, mOpenedTimeMs);
+		editor.putInt(PREF_PREFIX + "opens." + mServerUrl, mOpenCount);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return mServerUrl + " " + mState + " failures=" + mConsecutiveFailures
+			+ " openMs=" + getOpenMs()
+			+ " errorRate=" + getErrorRate() + " latency=" + getAverageLatencyMs() + "ms";
+	}
+}
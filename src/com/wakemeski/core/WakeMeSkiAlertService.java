@@ -248,7 +248,24 @@ public class WakeMeSkiAlertService extends Service {
 		 * issue 20</a>
 		 *
 		 */
-		mReportController.addListenerAndUpdateReports(mReportListener,false);
+		mReportController.addListenerAndUpdateReports(mReportListener,false,
+				getUseCase(),getLoadBudgetMs());
+	}
+
+	/**
+	 * @return the use case deciding how old a report may be before this service
+	 * re-loads it
+	 */
+	protected ReportController.UseCase getUseCase() {
+		return ReportController.UseCase.ALERT_POLL;
+	}
+
+	/**
+	 * @return the total time allowed for a report load started by this service,
+	 * or 0 for no limit
+	 */
+	protected long getLoadBudgetMs() {
+		return 0;
 	}
 
 
@@ -27,28 +27,77 @@
 
 package com.wakemeski.core;
 
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpResponseException;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.provider.Settings;
 
 import com.wakemeski.Log;
 
 /**
  * Wrapper around HttpUtils.getLocationServer() that allows caching a
- * server location
+ * server location.
+ *
+ * A single process wide instance obtained with getInstance() is shared by all
+ * callers so server discovery and the server_info.php fetch happen once.  The
+ * server info is kept in memory and in a file so it survives process restarts,
+ * and is refreshed in the background every SERVER_INFO_REFRESH_MS.
  */
 public class WakeMeSkiServer {
 
+	private static WakeMeSkiServer mInstance = null;
+
 	private String mID = null;
 
-	private String mServerUrl=null;
+	/*
+	 * Server selected by findServerUrl(), null until a server has been
+	 * reached.  Written while synchronized on this.
+	 */
+	private volatile String mServerUrl=null;
+
+	/*
+	 * System.currentTimeMillis() when mServerUrl was selected, it is selected
+	 * again once older than SELECTED_SERVER_TTL_MS
+	 */
+	private volatile long mServerSelectedTimeMs = 0;
+
+	/*
+	 * Server info of mServerUrl, only ever set to info actually fetched from
+	 * the server.  Written while synchronized on this.
+	 */
+	private volatile WakeMeSkiServerInfo mServerInfo=null;
 
-	private WakeMeSkiServerInfo mServerInfo=null;
+	private final Context mContext;
 
 	/**
 	 * list of supported servers
@@ -58,14 +107,352 @@ public class WakeMeSkiServer {
 		"http://wakemeski.com/skireport"
 	};
 
-	public WakeMeSkiServer(Context c) {
+	/*
+	 * Servers this instance selects from and hedges across, SERVER_LIST
+	 * except in tests
+	 */
+	private final String mServers[];
+
+	/**
+	 * Connect and read timeout used when probing each server in SERVER_LIST
+	 */
+	private static final int PROBE_TIMEOUT_MS = 5000;
+
+	/**
+	 * How long to keep waiting for the other servers once one has answered a
+	 * probe, in case a server a little slower has a newer version
+	 */
+	private static final long PROBE_GRACE_MS = 250;
+
+	/**
+	 * How long the server picked by findServerUrl() is used before the
+	 * servers are probed again
+	 */
+	private static final long SELECTED_SERVER_TTL_MS = 24 * 60 * 60 * 1000;
+
+	/**
+	 * How long to wait before probing the servers or fetching the server info
+	 * again after no server could be reached
+	 */
+	private static final long UNREACHABLE_RETRY_MS = 60 * 1000;
+
+	/*
+	 * SystemClock.elapsedRealtime() before which the servers aren't probed
+	 * again, and the server info isn't fetched again, after a failure
+	 */
+	private long mNextProbeMs = 0;
+	private long mNextServerInfoMs = 0;
+
+	/*
+	 * The findServerUrl() call in progress, shared by all callers which need
+	 * a server while it runs.  Guarded by this.
+	 */
+	private FutureTask<String> mServerSelection = null;
+
+	private static final String SELECTED_SERVER_PREF_KEY = "selectedServerUrl";
+	private static final String SELECTED_SERVER_TIME_PREF_KEY = "selectedServerTimeMs";
+
+	/**
+	 * How often the server info is re-fetched in the background
+	 */
+	private static final long SERVER_INFO_REFRESH_MS = 6 * 60 * 60 * 1000;
+
+	/**
+	 * File holding the last server info fetched, see readServerInfo()
+	 */
+	private static final String SERVER_INFO_FILE = "server_info.dat";
+
+	/*
+	 * Time the server info in mServerInfo was fetched from the server, or 0
+	 * if it has not been fetched
+	 */
+	private long mServerInfoTimeMs = 0;
+
+	private int mServerInfoHits = 0;
+	private int mServerInfoMisses = 0;
+
+	private ScheduledExecutorService mRefreshExecutor = null;
+
+	/**
+	 * Number of recent request latencies used to pick the hedge threshold
+	 */
+	private static final int HEDGE_LATENCY_SAMPLES = 32;
+
+	/**
+	 * Latency percentile of the selected server after which a request is also
+	 * sent to the mirror
+	 */
+	private static final int HEDGE_PERCENTILE = 90;
+
+	/**
+	 * Hedge threshold used until HEDGE_MIN_SAMPLES latencies have been seen
+	 */
+	private static final long DEFAULT_HEDGE_THRESHOLD_MS = 3000;
+	private static final int HEDGE_MIN_SAMPLES = 8;
+
+	/**
+	 * Lower bound on the hedge threshold so a fast server doesn't cause most
+	 * requests to be sent twice
+	 */
+	private static final long MIN_HEDGE_THRESHOLD_MS = 500;
+
+	private final LatencyTracker mLatency = new LatencyTracker(HEDGE_LATENCY_SAMPLES);
+
+	private int mHedgesIssued = 0;
+	private int mHedgePrimaryWins = 0;
+	private int mHedgeMirrorWins = 0;
+	private int mMirrorRetries = 0;
+
+	/*
+	 * Requests currently being fetched by fetch(), keyed by getInFlightKey().
+	 * All access must be synchronized on mInFlight.
+	 */
+	private final HashMap<String, InFlightFetch> mInFlight = new HashMap<String, InFlightFetch>();
+	private int mCoalesced = 0;
+
+	/**
+	 * A request being fetched by fetch() along with the options it was sent
+	 * with, which callers sharing its result must match
+	 */
+	private static class InFlightFetch {
+		final FutureTask<?> mTask;
+		final RevalidationCache mCache;
+		final int mTimeoutMs;
+
+		InFlightFetch(FutureTask<?> task, RevalidationCache cache, int timeoutMs) {
+			mTask = task;
+			mCache = cache;
+			mTimeoutMs = timeoutMs;
+		}
+
+		/**
+		 * @return true if a caller with cache and timeoutMs can share this
+		 * request: the same cache is used and the request is given no less
+		 * time than the caller allows
+		 */
+		boolean canJoin(RevalidationCache cache, int timeoutMs) {
+			return cache == mCache &&
+				(mTimeoutMs == 0 || (timeoutMs > 0 && timeoutMs <= mTimeoutMs));
+		}
+	}
+
+	/*
+	 * Health and circuit breaker state of each server, keyed by server URL
+	 */
+	private final Hashtable<String, ServerHealth> mHealth = new Hashtable<String, ServerHealth>();
+
+	/*
+	 * SystemClock.elapsedRealtime() of the last request routed to a server,
+	 * used to stop probing servers nobody is waiting on
+	 */
+	private volatile long mLastRequestTimeMs = 0;
+
+	/*
+	 * Runs the hedged requests made by fetch() and server selection, shared by all
+	 * instances
+	 */
+	private static final ExecutorService mHedgeExecutor =
+		Executors.newCachedThreadPool(new ThreadFactory() {
+			private int mCount = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				mCount++;
+				Thread t = new Thread(r, "HedgedFetch-" + mCount);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	/**
+	 * @param c context
+	 * @return the process wide server instance
+	 */
+	public static synchronized WakeMeSkiServer getInstance(Context c) {
+		if( mInstance == null ) {
+			mInstance = new WakeMeSkiServer(c.getApplicationContext());
+			mInstance.startBackgroundRefresh();
+		}
+		return mInstance;
+	}
+
+	private WakeMeSkiServer(Context c) {
 		mServerInfo = null;
+		mContext = c;
+		mServers = SERVER_LIST;
 		initID(c.getContentResolver());
+		loadHealth();
 	}
 
+	/**
+	 * Creates an instance which only uses serverUrl, so requests are never
+	 * hedged to or selected from the servers in SERVER_LIST
+	 */
 	protected WakeMeSkiServer(Context c, String serverUrl) {
+		mContext = c;
+		mServers = new String[] { serverUrl };
 		initID(c.getContentResolver());
 		mServerUrl = serverUrl;
+		mServerSelectedTimeMs = System.currentTimeMillis();
+		loadHealth();
+	}
+
+	/**
+	 * Restores the saved circuit breaker state of each server in mServers
+	 */
+	private void loadHealth() {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+		for( String url: mServers ) {
+			ServerHealth health = new ServerHealth(url);
+			health.load(prefs);
+			if( health.getState() != ServerHealth.State.CLOSED ) {
+				Log.i("Restored server health " + health);
+			}
+			mHealth.put(url, health);
+		}
+	}
+
+	/**
+	 * @return the response cache to use for requests to this server
+	 */
+	public DiskResponseCache getResponseCache() {
+		return DiskResponseCache.getInstance(mContext);
+	}
+
+	/**
+	 * @return the health tracker for the server at serverUrl
+	 */
+	public ServerHealth getHealth(String serverUrl) {
+		synchronized (mHealth) {
+			ServerHealth health = mHealth.get(serverUrl);
+			if( health == null ) {
+				health = new ServerHealth(serverUrl);
+				mHealth.put(serverUrl, health);
+			}
+			return health;
+		}
+	}
+
+	/**
+	 * Records the outcome of a request to serverUrl.  A response with an HTTP
+	 * error status below 500 shows the server is up so it counts as a success.
+	 * @param failure the exception the request failed with or null if it succeeded
+	 */
+	private void recordRequest(String serverUrl, long latencyMs, IOException failure) {
+		ServerHealth health = getHealth(serverUrl);
+		boolean changed;
+		if( !isServerFailure(failure) ) {
+			changed = health.recordSuccess(latencyMs);
+		} else {
+			changed = health.recordFailure();
+		}
+		if( changed ) {
+			onHealthChanged(health);
+		}
+	}
+
+	/**
+	 * @return true if a request failing with failure shows the server is down
+	 * or misbehaving, false for no failure or an HTTP error status below 500
+	 */
+	private static boolean isServerFailure(IOException failure) {
+		return failure != null && !(failure instanceof HttpResponseException &&
+				((HttpResponseException)failure).getStatusCode() < 500);
+	}
+
+	/**
+	 * Saves a new circuit state and schedules a background probe of a server
+	 * whose circuit just opened
+	 */
+	private void onHealthChanged(final ServerHealth health) {
+		Log.i("Server health changed " + health);
+		SharedPreferences.Editor editor =
+			PreferenceManager.getDefaultSharedPreferences(mContext).edit();
+		health.save(editor);
+		if( !editor.commit() ) {
+			Log.w("Unable to save server health " + health);
+		}
+		if( health.getState() == ServerHealth.State.OPEN ) {
+			scheduleHealthProbe(health);
+		}
+	}
+
+	/**
+	 * Probes a server with an open circuit once it becomes half open, so it
+	 * can be used again without waiting for a request to risk it.  A failed
+	 * probe opens the circuit again for longer, see ServerHealth.getOpenMs().
+	 * The probe is skipped when there is no network or no request has been
+	 * made since it was scheduled, the next request is then the trial.
+	 */
+	private synchronized void scheduleHealthProbe(final ServerHealth health) {
+		if( mRefreshExecutor == null ) {
+			return;
+		}
+		final long scheduledTimeMs = SystemClock.elapsedRealtime();
+		mRefreshExecutor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				String serverUrl = health.getServerUrl();
+				if( !isNetworkConnected() ) {
+					Log.d("No network, not probing " + serverUrl);
+					return;
+				}
+				if( !hasRequestsSince(scheduledTimeMs) ) {
+					Log.d("No requests pending, not probing " + serverUrl);
+					return;
+				}
+				long start = SystemClock.elapsedRealtime();
+				IOException failure = null;
+				try {
+					HttpUtils.fetchUrl(serverUrl + "/server_info.php", PROBE_TIMEOUT_MS);
+				} catch (IOException ioe) {
+					failure = ioe;
+				}
+				Log.d("Half open probe of " + serverUrl + (failure == null ? " succeeded" : " failed"));
+				recordRequest(serverUrl, SystemClock.elapsedRealtime() - start, failure);
+			}
+		}, health.getOpenRemainingMs(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return true if the device has a connected network
+	 */
+	private boolean isNetworkConnected() {
+		ConnectivityManager cm =
+			(ConnectivityManager)mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo n = cm == null ? null : cm.getActiveNetworkInfo();
+		return n != null && n.isConnected();
+	}
+
+	/**
+	 * @return true if a request is in flight or one was routed to a server
+	 * after timeMs, a SystemClock.elapsedRealtime() time
+	 */
+	private boolean hasRequestsSince(long timeMs) {
+		synchronized (mInFlight) {
+			if( !mInFlight.isEmpty() ) {
+				return true;
+			}
+		}
+		return mLastRequestTimeMs > timeMs;
+	}
+
+	/**
+	 * @param maxWaitMs longest to wait for a server to be selected, 0 to wait
+	 * for the selection to finish
+	 * @return the server requests should be sent to, the selected server unless
+	 * its circuit is open and another server's isn't
+	 */
+	private String getRoutedServerUrl(long maxWaitMs) {
+		mLastRequestTimeMs = SystemClock.elapsedRealtime();
+		String serverUrl = getServerUrl(maxWaitMs);
+		if( !getHealth(serverUrl).isAvailable() ) {
+			String mirrorUrl = getMirrorUrl(serverUrl);
+			if( mirrorUrl != null && getHealth(mirrorUrl).isAvailable() ) {
+				return mirrorUrl;
+			}
+		}
+		return serverUrl;
 	}
 
 	private void initID(ContentResolver cr) {
@@ -75,41 +462,567 @@ public class WakeMeSkiServer {
 	}
 
 	/**
+	 * @param maxWaitMs longest to wait for a server to be selected, 0 to wait
+	 * for the selection to finish
 	 * @return The server URL as obtained from HttpUtils as necessary or
-	 * cached version from previous request
+	 * cached version from previous request, the first server in mServers
+	 * if no server could be reached
 	 */
-	private synchronized String getServerUrl() {
-		if ( mServerUrl == null ) {
-			mServerUrl = findServerUrl();
+	private String getServerUrl(long maxWaitMs) {
+		String serverUrl = getSelectedServerUrl(maxWaitMs);
+		return serverUrl == null ? mServers[0] : serverUrl;
+	}
+
+	/**
+	 * @return the server selected so far without waiting for a selection in
+	 * progress: the current selection even if expired, else the last saved
+	 * selection, else the first server in mServers
+	 */
+	private String getLastServerUrl() {
+		String serverUrl = mServerUrl;
+		if( serverUrl == null ) {
+			serverUrl = getLastPersistedServerUrl();
 		}
-		return mServerUrl;
+		return serverUrl == null ? mServers[0] : serverUrl;
+	}
+
+	/**
+	 * @return true if no server has been selected or the selection is older
+	 * than SELECTED_SERVER_TTL_MS
+	 */
+	private boolean isSelectionExpired() {
+		long age = System.currentTimeMillis() - mServerSelectedTimeMs;
+		return mServerUrl == null || age < 0 || age > SELECTED_SERVER_TTL_MS;
+	}
+
+	/**
+	 * Selects a server with findServerUrl() if none has been selected yet or
+	 * the selection has expired.  Only one caller probes the servers at a
+	 * time, others wait for and share its result, or keep using an expired
+	 * selection while it is replaced.  The servers aren't probed again until
+	 * UNREACHABLE_RETRY_MS after none could be reached.
+	 *
+	 * The servers are probed on a mHedgeExecutor thread.  A caller which runs
+	 * out of time waiting for them gets the last selected server instead,
+	 * and the probe carries on to select a server for later requests.
+	 * @param maxWaitMs longest to wait for the selection, 0 to wait for it to
+	 * finish.  The probes themselves are limited by PROBE_TIMEOUT_MS.
+	 * @return the selected server or null if no server could be reached
+	 */
+	private String getSelectedServerUrl(long maxWaitMs) {
+		String serverUrl = mServerUrl;
+		if( !isSelectionExpired() ) {
+			return serverUrl;
+		}
+
+		FutureTask<String> task;
+		boolean inFlight;
+		synchronized (this) {
+			serverUrl = mServerUrl;
+			if( !isSelectionExpired() ) {
+				return serverUrl;
+			}
+			inFlight = mServerSelection != null;
+			if( inFlight && serverUrl != null ) {
+				return serverUrl;
+			} else if( inFlight ) {
+				task = mServerSelection;
+			} else if( SystemClock.elapsedRealtime() < mNextProbeMs ) {
+				return serverUrl;
+			} else {
+				task = new FutureTask<String>(new Callable<String>() {
+					@Override
+					public String call() {
+						try {
+							return findServerUrl();
+						} finally {
+							synchronized (WakeMeSkiServer.this) {
+								mServerSelection = null;
+							}
+						}
+					}
+				});
+				mServerSelection = task;
+			}
+		}
+
+		if( !inFlight ) {
+			mHedgeExecutor.execute(task);
+		}
+
+		try {
+			String selected;
+			if( maxWaitMs > 0 ) {
+				selected = task.get(maxWaitMs, TimeUnit.MILLISECONDS);
+			} else {
+				selected = task.get();
+			}
+			if( selected != null ) {
+				return selected;
+			}
+		} catch (TimeoutException te) {
+			Log.w("No server selected within " + maxWaitMs + "ms, using the last selection");
+			return getLastServerUrl();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException ee) {
+			Log.e("Exception selecting server", ee.getCause());
+		}
+		/*
+		 * Keep the expired selection, if any, until a server can be reached
+		 */
+		return serverUrl;
 	}
 
 	@Override
 	public String toString() {
-		return getServerUrl();
+		return getLastServerUrl();
 	}
 
 	/**
-	 * Fets the full url used to query the server
+	 * Fets the full url used to query the server, without waiting for a
+	 * server to be selected
 	 * @param url URL to append to server default URL
 	 * @return the full URL used to query the server with fetchUrl()
 	 */
 	public String getFetchUrl( String url ) {
-		return getServerUrl() + url;
+		return getLastServerUrl() + url;
 	}
 
 	/**
-	 * Fetch the URL from the server by prefixing url with
-	 * the server URL
+	 * Fetch the URL from the server by prefixing url with the server URL,
+	 * revalidating any previous response held in cache
 	 * @param url request for server
+	 * @param cache previous responses to revalidate, or null to always download
+	 * the full response
 	 * @return String[] result of fetch URL
 	 * @throws ClientProtocolException
 	 * @throws IOException
 	 */
-	public String[] fetchUrl( String url )
+	public String[] fetchUrl( String url, RevalidationCache cache )
 		throws ClientProtocolException, IOException {
-		return HttpUtils.fetchUrl(getFetchUrl(url));
+		return fetch(url, cache, 0, LINES);
+	}
+
+	/**
+	 * Parses one server's response to a request made with fetch(), receiving
+	 * each line as it is read from the network
+	 */
+	public interface ResponseParser<T> extends HttpUtils.LineListener {
+		/**
+		 * @return the result of parsing, called once the whole response has
+		 * been passed to onLine()
+		 */
+		T finish() throws IOException;
+	}
+
+	/**
+	 * Creates a parser for each server a request is sent to, so hedged
+	 * requests don't share parse state
+	 */
+	public interface ResponseParserFactory<T> {
+		/**
+		 * @param serverUrl server the response will be fetched from
+		 */
+		ResponseParser<T> newParser(String serverUrl);
+
+		/**
+		 * @return a copy of result for a caller which shared the request of
+		 * another caller, so no two callers are given the same object
+		 */
+		T copy(T result);
+	}
+
+	/*
+	 * Collects the response into an array of lines
+	 */
+	private static final ResponseParserFactory<String[]> LINES =
+		new ResponseParserFactory<String[]>() {
+			@Override
+			public ResponseParser<String[]> newParser(String serverUrl) {
+				return new ResponseParser<String[]>() {
+					private final ArrayList<String> mLines = new ArrayList<String>();
+
+					@Override
+					public void onLine(String line) {
+						mLines.add(line);
+					}
+
+					@Override
+					public String[] finish() {
+						return mLines.toArray(new String[mLines.size()]);
+					}
+				};
+			}
+
+			@Override
+			public String[] copy(String[] result) {
+				return result.clone();
+			}
+		};
+
+	/**
+	 * Fetch the URL from the server by prefixing url with the server URL and
+	 * parse the response as it arrives.
+	 *
+	 * If the selected server hasn't answered within its recent
+	 * HEDGE_PERCENTILE latency the same request is also sent to the other
+	 * server in SERVER_LIST, and whichever response is parsed first is used.
+	 * A request which fails before then is sent to the other server straight
+	 * away.
+	 * Concurrent calls for the same URL and kind of parser (ignoring the device
+	 * id) with the same cache share one request, as long as the request in
+	 * flight was given at least as long as timeoutMs.  Each caller gets its own
+	 * copy of the parsed result.
+	 * @param url request for server
+	 * @param cache previous responses to revalidate, or null to always download
+	 * the full response
+	 * @param timeoutMs connect and read timeout in milliseconds, 0 for the
+	 * default timeouts
+	 * @param factory creates the parser for each server's response
+	 * @return the result of the winning parser
+	 */
+	public <T> T fetch( final String url, final RevalidationCache cache, final int timeoutMs,
+			final ResponseParserFactory<T> factory )
+		throws ClientProtocolException, IOException {
+		/*
+		 * Callers asking for the same URL while it is being fetched wait for
+		 * and share the result of the request already in flight
+		 */
+		String key = getInFlightKey(url, factory);
+		FutureTask<T> task;
+		boolean inFlight = false;
+		boolean shared = false;
+		synchronized (mInFlight) {
+			InFlightFetch existing = mInFlight.get(key);
+			if( existing != null && existing.canJoin(cache, timeoutMs) ) {
+				@SuppressWarnings("unchecked")
+				FutureTask<T> existingTask = (FutureTask<T>) existing.mTask;
+				task = existingTask;
+				inFlight = true;
+				mCoalesced++;
+			} else {
+				task = new FutureTask<T>(new Callable<T>() {
+					@Override
+					public T call() throws IOException {
+						return fetchFromServer(url, cache, timeoutMs, factory);
+					}
+				});
+				/*
+				 * A request which can't be shared runs on its own, leaving the
+				 * one in flight for the callers already waiting on it
+				 */
+				if( existing == null ) {
+					mInFlight.put(key, new InFlightFetch(task, cache, timeoutMs));
+					shared = true;
+				}
+			}
+		}
+
+		if( inFlight ) {
+			Log.d("Joining request in flight for " + key);
+		} else {
+			try {
+				task.run();
+			} finally {
+				if( shared ) {
+					synchronized (mInFlight) {
+						mInFlight.remove(key);
+					}
+				}
+			}
+		}
+
+		try {
+			if( inFlight ) {
+				T result;
+				if( timeoutMs > 0 ) {
+					result = getFetchResult(task, timeoutMs);
+				} else {
+					result = getFetchResult(task);
+				}
+				return factory.copy(result);
+			}
+			return getFetchResult(task);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted fetching " + url);
+		}
+	}
+
+	/**
+	 * @return the key identifying requests for url which can share a result,
+	 * the url without the device id and the kind of parser used.  The url
+	 * holds the since= delta base of a report request, so only requests for
+	 * changes since the same version share a result.
+	 */
+	private static String getInFlightKey(String url, ResponseParserFactory<?> factory) {
+		return factory.getClass().getName() + " " + DiskResponseCache.getCacheKey(url);
+	}
+
+	/**
+	 * @return the number of fetch() calls which shared a request already in flight
+	 */
+	public int getCoalescedCount() {
+		synchronized (mInFlight) {
+			return mCoalesced;
+		}
+	}
+
+	/**
+	 * Sends a request for fetch() to the server, hedging to the mirror when the
+	 * server is slow
+	 */
+	private <T> T fetchFromServer( String url, RevalidationCache cache, int timeoutMs,
+			ResponseParserFactory<T> factory )
+		throws ClientProtocolException, IOException {
+		String serverUrl = getRoutedServerUrl(timeoutMs);
+		String mirrorUrl = getMirrorUrl(serverUrl);
+		if( mirrorUrl != null && !getHealth(mirrorUrl).isAvailable() ) {
+			/*
+			 * Don't hedge to a server known to be down
+			 */
+			mirrorUrl = null;
+		}
+		if( mirrorUrl == null ) {
+			return new FetchTask<T>(serverUrl, url, cache, timeoutMs, factory, mLatency).call();
+		}
+
+		CompletionService<T> fetches = new ExecutorCompletionService<T>(mHedgeExecutor);
+		long start = SystemClock.elapsedRealtime();
+		Future<T> primary = fetches.submit(
+				new FetchTask<T>(serverUrl, url, cache, timeoutMs, factory, mLatency));
+		Future<T> mirror = null;
+		try {
+			Future<T> done = fetches.poll(getHedgeThresholdMs(), TimeUnit.MILLISECONDS);
+			if( done != null ) {
+				try {
+					return getFetchResult(done);
+				} catch (IOException ioe) {
+					if( !isServerFailure(ioe) ) {
+						throw ioe;
+					}
+					/*
+					 * Failed fast, give the mirror its turn rather than failing
+					 * the request
+					 */
+					synchronized (this) {
+						mMirrorRetries++;
+					}
+					Log.d("Request to " + serverUrl + " failed with " + ioe +
+							", retrying with " + mirrorUrl);
+					mirror = fetches.submit(
+							new FetchTask<T>(mirrorUrl, url, cache, timeoutMs, factory, null));
+					return getFetchResult(fetches.take());
+				}
+			}
+
+			synchronized (this) {
+				mHedgesIssued++;
+			}
+			Log.d("No response from " + serverUrl + " after " + getHedgeThresholdMs() +
+					"ms, hedging request to " + mirrorUrl);
+			mirror = fetches.submit(
+					new FetchTask<T>(mirrorUrl, url, cache, timeoutMs, factory, null));
+
+			/*
+			 * Use the first successful response, only failing if both fail
+			 */
+			IOException failure = null;
+			for( int outstanding = 2; outstanding > 0; outstanding-- ) {
+				done = fetches.take();
+				try {
+					T result = getFetchResult(done);
+					synchronized (this) {
+						if( done == primary ) {
+							mHedgePrimaryWins++;
+						} else {
+							mHedgeMirrorWins++;
+						}
+					}
+					if( done != primary ) {
+						/*
+						 * The primary took at least this long, leaving it out
+						 * would bias the threshold towards fast requests
+						 */
+						mLatency.record(SystemClock.elapsedRealtime() - start);
+					}
+					Log.d("Hedged request won by " + (done == primary ? serverUrl : mirrorUrl));
+					return result;
+				} catch (IOException ioe) {
+					failure = ioe;
+				}
+			}
+			throw failure;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted fetching " + url);
+		} finally {
+			primary.cancel(true);
+			if( mirror != null ) {
+				mirror.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Fetches a URL from one server, usually on one of the mHedgeExecutor
+	 * threads, and records the outcome in the server's health
+	 */
+	private class FetchTask<T> implements Callable<T> {
+		private final String mServerUrl;
+		private final String mUrl;
+		private final RevalidationCache mCache;
+		private final int mTimeoutMs;
+		private final ResponseParserFactory<T> mFactory;
+		private final LatencyTracker mTracker;
+
+		/**
+		 * @param tracker records the latency of a successful fetch, may be null
+		 */
+		FetchTask(String serverUrl, String url, RevalidationCache cache, int timeoutMs,
+				ResponseParserFactory<T> factory, LatencyTracker tracker) {
+			mServerUrl = serverUrl;
+			mUrl = url;
+			mCache = cache;
+			mTimeoutMs = timeoutMs;
+			mFactory = factory;
+			mTracker = tracker;
+		}
+
+		@Override
+		public T call() throws IOException {
+			long start = SystemClock.elapsedRealtime();
+			ResponseParser<T> parser = mFactory.newParser(mServerUrl);
+			boolean fromServer;
+			try {
+				fromServer = HttpUtils.fetchUrl(mServerUrl + mUrl, mCache, parser, mTimeoutMs);
+			} catch (IOException ioe) {
+				recordRequest(mServerUrl, SystemClock.elapsedRealtime() - start, ioe);
+				throw ioe;
+			}
+			if( !fromServer ) {
+				/*
+				 * Served from the cache, says nothing about the server
+				 */
+				return parser.finish();
+			}
+			long latency = SystemClock.elapsedRealtime() - start;
+			recordRequest(mServerUrl, latency, null);
+			if( mTracker != null ) {
+				mTracker.record(latency);
+			}
+			return parser.finish();
+		}
+	}
+
+	/**
+	 * @return the result of a completed fetch, rethrowing the exception it failed with
+	 */
+	private static <T> T getFetchResult(Future<T> f)
+		throws IOException, InterruptedException {
+		try {
+			return f.get();
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if( cause instanceof IOException ) {
+				throw (IOException)cause;
+			}
+			if( cause instanceof RuntimeException ) {
+				throw (RuntimeException)cause;
+			}
+			IOException ioe = new IOException("Fetch failed: " + cause);
+			ioe.initCause(cause);
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Same as getFetchResult(Future) but waits at most timeoutMs
+	 */
+	private static <T> T getFetchResult(Future<T> f, long timeoutMs)
+		throws IOException, InterruptedException {
+		try {
+			f.get(timeoutMs, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException ee) {
+			/*
+			 * Rethrown below
+			 */
+		} catch (TimeoutException te) {
+			throw new InterruptedIOException("Timed out after " + timeoutMs + "ms");
+		}
+		return getFetchResult(f);
+	}
+
+	/**
+	 * @return the server in mServers to hedge requests to serverUrl with, or
+	 * null if there is none
+	 */
+	private String getMirrorUrl(String serverUrl) {
+		for( String url: mServers ) {
+			if( !url.equals(serverUrl) ) {
+				return url;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return how long to wait for the selected server before also sending a
+	 * request to the mirror, the HEDGE_PERCENTILE of recent latencies
+	 */
+	public long getHedgeThresholdMs() {
+		if( mLatency.getCount() < HEDGE_MIN_SAMPLES ) {
+			return DEFAULT_HEDGE_THRESHOLD_MS;
+		}
+		return Math.max(MIN_HEDGE_THRESHOLD_MS, mLatency.getPercentile(HEDGE_PERCENTILE));
+	}
+
+	/**
+	 * @return a summary of the requests hedged to the mirror since the process
+	 * started, how many of them each server answered first, and the number of
+	 * requests retried on the mirror after the selected server failed
+	 */
+	public synchronized String getHedgeStats() {
+		return "hedged=" + mHedgesIssued + " primaryWins=" + mHedgePrimaryWins +
+			" mirrorWins=" + mHedgeMirrorWins + " mirrorRetries=" + mMirrorRetries +
+			" thresholdMs=" + getHedgeThresholdMs();
+	}
+
+	/**
+	 * Fetch the URL from the server by prefixing url with the server URL and
+	 * adding the phone's unique ID, passing each line of the response to
+	 * listener as it is read.  Fails if the server can't be reached or stops
+	 * responding within timeoutMs.
+	 *
+	 * Unlike fetch() this bypasses the response cache, request coalescing and
+	 * hedging.  listener is called on the caller's thread as each line arrives,
+	 * so callers like BatchReportLoader can act on part of a response before
+	 * the rest is read.  A joined caller would miss lines already delivered,
+	 * a hedged request would deliver lines from two servers on other threads,
+	 * and a response cache would replay data the caller asked to refresh.  The
+	 * request is still routed around servers with an open circuit and its
+	 * outcome is recorded in the server's health.
+	 * @param url request for server
+	 * @param listener receives each line of the response
+	 * @param timeoutMs connect and read timeout in milliseconds, 0 for the
+	 * default timeouts
+	 * @throws ClientProtocolException
+	 * @throws IOException
+	 */
+	public void fetchUrlWithID( String url, HttpUtils.LineListener listener, int timeoutMs )
+		throws ClientProtocolException, IOException {
+		String serverUrl = getRoutedServerUrl(timeoutMs);
+		long start = SystemClock.elapsedRealtime();
+		try {
+			HttpUtils.fetchUrl(serverUrl + url + "&id=" + getId(), null, listener, timeoutMs);
+		} catch (IOException ioe) {
+			recordRequest(serverUrl, SystemClock.elapsedRealtime() - start, ioe);
+			throw ioe;
+		}
+		long latency = SystemClock.elapsedRealtime() - start;
+		recordRequest(serverUrl, latency, null);
+		mLatency.record(latency);
 	}
 
 	public String getId() {
@@ -117,12 +1030,13 @@ public class WakeMeSkiServer {
 	}
 
 	/**
-	 * Same as the fetchURL but adds the phone's unique ID to the query
-	 * string so the server can track usage patterns
+	 * Same as fetch() but adds the phone's unique ID to the query string so
+	 * the server can track usage patterns
 	 */
-	public String[] fetchUrlWithID(String url)
+	public <T> T fetchWithID(String url, RevalidationCache cache, int timeoutMs,
+			ResponseParserFactory<T> factory)
 		throws ClientProtocolException, IOException {
-		return fetchUrl(url + "&id=" + getId());
+		return fetch(url + "&id=" + getId(), cache, timeoutMs, factory);
 	}
 
 	/**
@@ -146,28 +1060,46 @@ public class WakeMeSkiServer {
 	 * for this server.
 	 */
 	private WakeMeSkiServerInfo getServerInfo(String serverUrl) {
+		return getServerInfo(serverUrl, getResponseCache(), PROBE_TIMEOUT_MS);
+	}
+
+	/**
+	 * Get the server info for the given server URL
+	 * @param serverUrl Server to query for server info
+	 * @param cache response cache or null to always ask the server
+	 * @param timeoutMs connect and read timeout in milliseconds, 0 for the default timeouts
+	 * @return a WakeMeSkiServerInfo object with either default values or values
+	 * for this server.
+	 */
+	private static WakeMeSkiServerInfo getServerInfo(String serverUrl, RevalidationCache cache,
+			int timeoutMs) {
 		String url = serverUrl + "/server_info.php";
-		ArrayList<String> exp = new ArrayList<String>();
-		WakeMeSkiServerInfo serverInfo = new WakeMeSkiServerInfo();
+		final ArrayList<String> exp = new ArrayList<String>();
+		final WakeMeSkiServerInfo serverInfo = new WakeMeSkiServerInfo();
 		try
 		{
-			String rows[] = HttpUtils.fetchUrl(url);
-			for (String row : rows) {
-				String vals[] = row.split("=", 2);
-				if(vals.length == 2) {
-					vals[0] = vals[0].trim();
-					vals[1] = vals[1].trim();
-					if(vals[0].equals("server.version")) {
-						serverInfo.setServerVersion(getInt(vals[1]));
-					} else if(vals[0].equals("ap.min.supported.version")) {
-						serverInfo.setApMinSupportedVersion(getInt(vals[1]));
-					} else if(vals[0].equals("ap.latest.version")) {
-						serverInfo.setApLatestVersion(getInt(vals[1]));
-					} else if(vals[0].equals("alert.regex")) {
-						exp.add(vals[1]);
+			HttpUtils.fetchUrl(url, cache, new HttpUtils.KeyValueLineListener(
+					new HttpUtils.KeyValueListener() {
+				@Override
+				public void onKeyValue(String key, String value) {
+					if(key.equals("server.version")) {
+						serverInfo.setServerVersion(getInt(value));
+					} else if(key.equals("ap.min.supported.version")) {
+						serverInfo.setApMinSupportedVersion(getInt(value));
+					} else if(key.equals("ap.latest.version")) {
+						serverInfo.setApLatestVersion(getInt(value));
+					} else if(key.equals("report.batch.max")) {
+						serverInfo.setReportBatchMax(getInt(value));
+					} else if(key.equals("report.delta")) {
+						serverInfo.setReportDelta(getInt(value) != 0);
+					} else if(key.equals("poll.min.interval")) {
+						// seconds
+						serverInfo.setMinPollIntervalMs(Math.max(0, getInt(value)) * 1000L);
+					} else if(key.equals("alert.regex")) {
+						exp.add(value);
 					}
 				}
-			}
+			}), timeoutMs);
 			serverInfo.setAlertExpressions(exp.toArray(new String[exp.size()]));
 		}
 		catch ( ClientProtocolException ce ) {
@@ -184,37 +1116,394 @@ public class WakeMeSkiServer {
 	/**
 	 * @return The server info for this server instance (defaults if server info could not be obtained)
 	 */
-	public synchronized WakeMeSkiServerInfo getServerInfo() {
-		if( mServerInfo == null ) {
-			mServerInfo = getServerInfo(getServerUrl());
+	public WakeMeSkiServerInfo getServerInfo() {
+		return getServerInfo(0);
+	}
+
+	/**
+	 * Same as getServerInfo() but returns within about timeoutMs, which is
+	 * shared between selecting a server and fetching server_info.php.  If no
+	 * server is selected in time the last selected server is used.  Defaults
+	 * returned because the server couldn't be reached are not kept, the
+	 * server info is fetched again by a call made after UNREACHABLE_RETRY_MS.
+	 * @param timeoutMs time limit in milliseconds, 0 to wait for the server
+	 * selection and use PROBE_TIMEOUT_MS for server_info.php
+	 */
+	public WakeMeSkiServerInfo getServerInfo(int timeoutMs) {
+		Deadline deadline = timeoutMs > 0 ? new Deadline(timeoutMs) : null;
+		String serverUrl = getSelectedServerUrl(timeoutMs);
+		synchronized (this) {
+			if( serverUrl != null && mServerInfo == null ) {
+				readServerInfo(serverUrl);
+			}
+			if( mServerInfo != null ) {
+				mServerInfoHits++;
+				return mServerInfo;
+			}
+			mServerInfoMisses++;
+			if( serverUrl == null || SystemClock.elapsedRealtime() < mNextServerInfoMs ) {
+				return new WakeMeSkiServerInfo();
+			}
+		}
+
+		int fetchTimeoutMs = PROBE_TIMEOUT_MS;
+		if( deadline != null ) {
+			if( deadline.isExpired() ) {
+				Log.w("No time left to fetch server info from " + serverUrl);
+				return new WakeMeSkiServerInfo();
+			}
+			fetchTimeoutMs = deadline.getRequestTimeoutMs(1, 1);
+		}
+		WakeMeSkiServerInfo info = getServerInfo(serverUrl, getResponseCache(), fetchTimeoutMs);
+		if( info.getServerVersion() != -1 ) {
+			setServerInfo(serverUrl, info);
+		} else {
+			synchronized (this) {
+				mNextServerInfoMs = SystemClock.elapsedRealtime() + UNREACHABLE_RETRY_MS;
+			}
+		}
+		return info;
+	}
+
+	/**
+	 * @return the number of getServerInfo() calls answered from memory or from
+	 * the server info file
+	 */
+	public synchronized int getServerInfoHitCount() {
+		return mServerInfoHits;
+	}
+
+	/**
+	 * @return the number of getServerInfo() calls which had to fetch server_info.php
+	 */
+	public synchronized int getServerInfoMissCount() {
+		return mServerInfoMisses;
+	}
+
+	/**
+	 * Replaces the in memory server info with info successfully fetched from
+	 * serverUrl and saves it to the server info file
+	 */
+	private synchronized void setServerInfo(String serverUrl, WakeMeSkiServerInfo info) {
+		if( !serverUrl.equals(mServerUrl) ) {
+			return;
 		}
-		return mServerInfo;
+		mServerInfo = info;
+		mServerInfoTimeMs = System.currentTimeMillis();
+		mNextServerInfoMs = 0;
+		writeServerInfo(serverUrl, info);
 	}
 
 	/**
-	 * Looks for the latest of the two servers in the server list, or defaults to
-	 * using the first server in the list if both are at the same version or both
-	 * are unreachable.
-	 * @return A string with the URL which should be used with this server
+	 * Restores mServerInfo from the server info file if it was saved for serverUrl
 	 */
-	private synchronized String findServerUrl() {
-		WakeMeSkiServerInfo latestServerInfo = new WakeMeSkiServerInfo();
-		String latestServerUrl = SERVER_LIST[0] ;
-		for (String serverUrl: SERVER_LIST) {
-			WakeMeSkiServerInfo serverInfo = getServerInfo(serverUrl);
-			try {
-				if (serverInfo.getServerVersion() != -1 &&
-						serverInfo.getServerVersion() > latestServerInfo.getServerVersion()) {
-					latestServerUrl = serverUrl;
-					latestServerInfo = serverInfo;
+	private void readServerInfo(String serverUrl) {
+		ObjectInputStream ois = null;
+		try {
+			FileInputStream fis = mContext.openFileInput(SERVER_INFO_FILE);
+			ois = new ObjectInputStream(fis);
+			String savedUrl = (String) ois.readObject();
+			long savedTime = ois.readLong();
+			WakeMeSkiServerInfo info = (WakeMeSkiServerInfo) ois.readObject();
+			if( serverUrl.equals(savedUrl) ) {
+				mServerInfo = info;
+				mServerInfoTimeMs = savedTime;
+			}
+		} catch (FileNotFoundException fnf) {
+			Log.d("No saved server info");
+		} catch (Exception e) {
+			Log.e("Exception " + e + " reading " + SERVER_INFO_FILE);
+		} finally {
+			if( ois != null ) {
+				try {
+					ois.close();
+				} catch (IOException ioe) {
+					Log.w("IO exception closing input file " + SERVER_INFO_FILE, ioe);
+				}
+			}
+		}
+	}
+
+	private void writeServerInfo(String serverUrl, WakeMeSkiServerInfo info) {
+		ObjectOutputStream oos = null;
+		try {
+			FileOutputStream fos = mContext.openFileOutput(SERVER_INFO_FILE, 0);
+			oos = new ObjectOutputStream(fos);
+			oos.writeObject(serverUrl);
+			oos.writeLong(mServerInfoTimeMs);
+			oos.writeObject(info);
+		} catch (Exception e) {
+			Log.e("Exception " + e + " writing " + SERVER_INFO_FILE);
+		} finally {
+			if( oos != null ) {
+				try {
+					oos.close();
+				} catch (IOException ioe) {
+					Log.w("IO exception " + ioe + " closing output file " + SERVER_INFO_FILE);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Re-fetches the server info from the server, keeping the previous server
+	 * info if the server can't be reached
+	 */
+	private void refreshServerInfo() {
+		String serverUrl = getSelectedServerUrl(0);
+		if( serverUrl == null ) {
+			Log.i("No server reachable, not refreshing server info");
+			return;
+		}
+		WakeMeSkiServerInfo info = getServerInfo(serverUrl);
+		if( info.getServerVersion() != -1 ) {
+			Log.d("Refreshed server info for " + serverUrl);
+			setServerInfo(serverUrl, info);
+		} else {
+			Log.i("Unable to refresh server info for " + serverUrl);
+		}
+	}
+
+	/**
+	 * Starts a background thread which refreshes the server info every
+	 * SERVER_INFO_REFRESH_MS, starting right away if the saved server info
+	 * is already older than that
+	 */
+	private synchronized void startBackgroundRefresh() {
+		mRefreshExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ServerInfoRefresh");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long initialDelay = SERVER_INFO_REFRESH_MS;
+		String serverUrl = getPersistedServerUrl();
+		if( serverUrl != null ) {
+			mServerUrl = serverUrl;
+			mServerSelectedTimeMs = getPersistedServerTimeMs();
+			readServerInfo(serverUrl);
+		}
+		long age = System.currentTimeMillis() - mServerInfoTimeMs;
+		if( mServerInfo == null || age < 0 || age >= SERVER_INFO_REFRESH_MS ) {
+			initialDelay = 0;
+		} else {
+			initialDelay = SERVER_INFO_REFRESH_MS - age;
+		}
+		mRefreshExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refreshServerInfo();
+				} catch (Exception e) {
+					Log.e("Exception refreshing server info", e);
 				}
 			}
-			catch (Exception e) {
-				Log.i("Exception getting server info for server " + serverUrl + e.getMessage());
+		}, initialDelay, SERVER_INFO_REFRESH_MS, TimeUnit.MILLISECONDS);
+
+		for( ServerHealth health: mHealth.values() ) {
+			if( health.getState() == ServerHealth.State.OPEN ) {
+				scheduleHealthProbe(health);
 			}
 		}
-		mServerInfo = latestServerInfo;
-		return latestServerUrl;
+	}
+
+	/**
+	 * The result of probing one server in mServers
+	 */
+	private static class ProbeResult {
+		final String mServerUrl;
+		final WakeMeSkiServerInfo mServerInfo;
+		final long mLatencyMs;
+
+		ProbeResult(String serverUrl, WakeMeSkiServerInfo serverInfo, long latencyMs) {
+			mServerUrl = serverUrl;
+			mServerInfo = serverInfo;
+			mLatencyMs = latencyMs;
+		}
+
+		boolean isReachable() {
+			return mServerInfo.getServerVersion() != -1;
+		}
+
+		/**
+		 * @return true if this server should be preferred over other, first by
+		 * newest server version then by lowest latency
+		 */
+		boolean isBetterThan(ProbeResult other) {
+			if( other == null || !other.isReachable() ) {
+				return isReachable();
+			}
+			if( !isReachable() ) {
+				return false;
+			}
+			int version = mServerInfo.getServerVersion();
+			int otherVersion = other.mServerInfo.getServerVersion();
+			if( version != otherVersion ) {
+				return version > otherVersion;
+			}
+			return mLatencyMs < other.mLatencyMs;
+		}
+	}
+
+	/**
+	 * @return the server previously selected by findServerUrl() if it was
+	 * selected less than SELECTED_SERVER_TTL_MS ago, otherwise null
+	 */
+	private String getPersistedServerUrl() {
+		String url = getLastPersistedServerUrl();
+		long age = System.currentTimeMillis() - getPersistedServerTimeMs();
+		if( url == null || age < 0 || age > SELECTED_SERVER_TTL_MS ) {
+			return null;
+		}
+		return url;
+	}
+
+	/**
+	 * @return the server last saved by findServerUrl() however long ago it
+	 * was selected, or null if there is none
+	 */
+	private String getLastPersistedServerUrl() {
+		String url = PreferenceManager.getDefaultSharedPreferences(mContext).getString(
+				SELECTED_SERVER_PREF_KEY, null);
+		/*
+		 * Ignore servers which have since been removed from the list
+		 */
+		for( String serverUrl: mServers ) {
+			if( serverUrl.equals(url) ) {
+				return url;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return System.currentTimeMillis() when the saved server was selected
+	 */
+	private long getPersistedServerTimeMs() {
+		return PreferenceManager.getDefaultSharedPreferences(mContext).getLong(
+				SELECTED_SERVER_TIME_PREF_KEY, 0);
+	}
+
+	private void persistServerUrl(String url) {
+		SharedPreferences.Editor editor =
+			PreferenceManager.getDefaultSharedPreferences(mContext).edit();
+		editor.putString(SELECTED_SERVER_PREF_KEY, url);
+		editor.putLong(SELECTED_SERVER_TIME_PREF_KEY, System.currentTimeMillis());
+		if( !editor.commit() ) {
+			Log.w("Unable to save selected server " + url);
+		}
+	}
+
+	/**
+	 * Probes every server in mServers at the same time.  The wait ends
+	 * PROBE_GRACE_MS after the first server answers, so one slow or dead
+	 * server doesn't hold up the selection, or after maxWaitMs if none answer.
+	 * @param maxWaitMs the longest to wait for any server to answer
+	 * @return the best server which answered in time or null if none did
+	 */
+	private ProbeResult probeServers(long maxWaitMs) {
+		ExecutorService executor = Executors.newFixedThreadPool(mServers.length);
+		CompletionService<ProbeResult> probes =
+			new ExecutorCompletionService<ProbeResult>(executor);
+		for( final String serverUrl: mServers ) {
+			probes.submit(new Callable<ProbeResult>() {
+				@Override
+				public ProbeResult call() {
+					long start = SystemClock.elapsedRealtime();
+					/*
+					 * Probes always go to the server, the latency is what's measured
+					 */
+					WakeMeSkiServerInfo info = getServerInfo(serverUrl, null, PROBE_TIMEOUT_MS);
+					return new ProbeResult(serverUrl, info,
+							SystemClock.elapsedRealtime() - start);
+				}
+			});
+		}
+
+		ProbeResult best = null;
+		long waitUntil = SystemClock.elapsedRealtime() + maxWaitMs;
+		try {
+			for( int outstanding = mServers.length; outstanding > 0; outstanding-- ) {
+				long waitMs = waitUntil - SystemClock.elapsedRealtime();
+				Future<ProbeResult> f = waitMs > 0 ?
+						probes.poll(waitMs, TimeUnit.MILLISECONDS) : null;
+				if( f == null ) {
+					Log.i("Not waiting for " + outstanding + " server probes");
+					break;
+				}
+				try {
+					ProbeResult result = f.get();
+					Log.d("Probed server " + result.mServerUrl + " version " +
+							result.mServerInfo.getServerVersion() + " in " +
+							result.mLatencyMs + "ms");
+					if( result.isBetterThan(best) ) {
+						best = result;
+					}
+					if( result.isReachable() ) {
+						waitUntil = Math.min(waitUntil,
+								SystemClock.elapsedRealtime() + PROBE_GRACE_MS);
+					}
+				} catch (ExecutionException ee) {
+					Log.i("Exception probing server " + ee.getCause());
+				}
+			}
+		} catch (InterruptedException ie) {
+			Log.w("Interrupted probing servers", ie);
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdownNow();
+		}
+		return best;
+	}
+
+	/**
+	 * Picks the server with the newest version out of the servers in the server
+	 * list, using the fastest responding server when more than one have the
+	 * same version.  The selection is saved and re-used for
+	 * SELECTED_SERVER_TTL_MS.  The servers are probed without holding the
+	 * lock on this, only the result is published under it.  If no server can
+	 * be reached an expired selection is kept.
+	 * @return A string with the URL which should be used with this server, or
+	 * null if no server is reachable
+	 */
+	private String findServerUrl() {
+		String serverUrl = getPersistedServerUrl();
+		if( serverUrl != null ) {
+			Log.d("Using saved server selection " + serverUrl);
+			setSelectedServer(serverUrl, getPersistedServerTimeMs());
+			return serverUrl;
+		}
+
+		ProbeResult best = probeServers(2 * PROBE_TIMEOUT_MS);
+		if( best == null || !best.isReachable() ) {
+			Log.i("No server reachable, probing again in " + UNREACHABLE_RETRY_MS + "ms");
+			synchronized (this) {
+				mNextProbeMs = SystemClock.elapsedRealtime() + UNREACHABLE_RETRY_MS;
+			}
+			return null;
+		}
+		Log.d("Selected server " + best.mServerUrl);
+		persistServerUrl(best.mServerUrl);
+		setSelectedServer(best.mServerUrl, System.currentTimeMillis());
+		setServerInfo(best.mServerUrl, best.mServerInfo);
+		return best.mServerUrl;
+	}
+
+	/**
+	 * Publishes a newly selected server, dropping the server info of the
+	 * previous selection if it changed
+	 * @param selectedTimeMs System.currentTimeMillis() when serverUrl was selected
+	 */
+	private synchronized void setSelectedServer(String serverUrl, long selectedTimeMs) {
+		if( !serverUrl.equals(mServerUrl) ) {
+			mServerInfo = null;
+			mServerInfoTimeMs = 0;
+		}
+		mServerUrl = serverUrl;
+		mServerSelectedTimeMs = selectedTimeMs;
+		mNextProbeMs = 0;
 	}
 
 
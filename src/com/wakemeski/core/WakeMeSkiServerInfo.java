@@ -27,16 +27,42 @@
 
 package com.wakemeski.core;
 
+import java.io.Serializable;
+import java.util.regex.Pattern;
+
 /**
  * A class to hold server info for this wakemeski server instance,
  * as found in server_info.php
  */
-public class WakeMeSkiServerInfo {
+public class WakeMeSkiServerInfo implements Serializable {
+
+	private static final long serialVersionUID = 0;
+
 	private int mApMinSupportedVersion = -1;
 	private int mApLatestVersion = -1;
 	private int mServerVersion = -1;
+	/*
+	 * Maximum number of resorts the server will return from one batch report
+	 * request, 0 when batch report requests are not supported
+	 */
+	private int mReportBatchMax = 0;
+	/*
+	 * True when the server can answer report requests with since=<version>
+	 * with only the changed lines, see Report.ReportParser
+	 */
+	private boolean mReportDelta = false;
+	/*
+	 * Shortest interval the server wants clients to poll reports at, 0 if the
+	 * server has no limit
+	 */
+	private long mMinPollIntervalMs = 0;
 
-	private String[] mRegEx;
+	private String[] mRegEx = new String[0];
+
+	/*
+	 * Compiled versions of mRegEx, built on first use
+	 */
+	private transient Pattern[] mPatterns = null;
 
 
 	public int getApMinSupportedVersion() {
@@ -51,6 +77,29 @@ public class WakeMeSkiServerInfo {
 		return mServerVersion;
 	}
 
+	/**
+	 * @return the maximum number of resorts which may be requested at once
+	 * with BatchReportLoader, or 0 if the server does not support batch requests
+	 */
+	public int getReportBatchMax() {
+		return mReportBatchMax;
+	}
+
+	/**
+	 * @return true if the server supports report delta requests
+	 */
+	public boolean supportsReportDelta() {
+		return mReportDelta;
+	}
+
+	/**
+	 * @return the minimum time between report polls the server asks for, or
+	 * 0 if it doesn't limit polling
+	 */
+	public long getMinPollIntervalMs() {
+		return mMinPollIntervalMs;
+	}
+
 	public String[] getAlertExpressions() {
 		return mRegEx;
 	}
@@ -67,7 +116,33 @@ public class WakeMeSkiServerInfo {
 		mServerVersion = version;
 	}
 
-	public void setAlertExpressions(String[] regex) {
+	public void setReportBatchMax( int max ) {
+		mReportBatchMax = max;
+	}
+
+	public void setReportDelta( boolean supported ) {
+		mReportDelta = supported;
+	}
+
+	public void setMinPollIntervalMs( long intervalMs ) {
+		mMinPollIntervalMs = intervalMs;
+	}
+
+	/**
+	 * @return the alert expressions compiled for matching against weather forecasts
+	 */
+	public synchronized Pattern[] getAlertPatterns() {
+		if( mPatterns == null ) {
+			mPatterns = new Pattern[mRegEx.length];
+			for( int i = 0; i < mRegEx.length; i++ ) {
+				mPatterns[i] = Pattern.compile(mRegEx[i]);
+			}
+		}
+		return mPatterns;
+	}
+
+	public synchronized void setAlertExpressions(String[] regex) {
 		mRegEx = regex;
+		mPatterns = null;
 	}
 }
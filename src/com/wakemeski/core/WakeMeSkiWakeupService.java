@@ -49,6 +49,13 @@ public class WakeMeSkiWakeupService extends WakeMeSkiAlertService {
 	public static final String EXTRA_PENDING_ALARM_INTENT ="com.wakemeski.core.PENDING_ALARM_INTENT";
 	Intent	mPendingAlarmIntent=null;
 
+	/*
+	 * Total time allowed for the report load during a wake check.  The CPU wake
+	 * lock is held while loading, and the alarm decision is made from whichever
+	 * reports loaded before this expires.
+	 */
+	private static final long WAKE_CHECK_BUDGET_MS = 60 * 1000;
+
 	/**
 	 * Clear mAlarmFired when the report load starts
 	 */
@@ -75,6 +82,26 @@ public class WakeMeSkiWakeupService extends WakeMeSkiAlertService {
 		return super.shouldStopOnReportLoadComplete();
 	}
 
+	/**
+	 * Limits the report load for a wake check so a slow or unresponsive server
+	 * can't hold the wake lock and delay the alarm decision indefinitely.
+	 * Resorts which don't load in time are reported with a timeout error and
+	 * never meet the wakeup preference, so the alarm only fires if a resort that
+	 * did load met it.
+	 */
+	@Override
+	protected long getLoadBudgetMs() {
+		return WAKE_CHECK_BUDGET_MS;
+	}
+
+	/**
+	 * The wakeup decision uses more recent reports than the periodic alert check
+	 */
+	@Override
+	protected ReportController.UseCase getUseCase() {
+		return ReportController.UseCase.WAKE_CHECK;
+	}
+
 	/**
 	 * Gets the wakeup snow settings preference instead of the notification snow
 	 * settings preference for use with the wakeup service
@@ -110,7 +137,10 @@ public class WakeMeSkiWakeupService extends WakeMeSkiAlertService {
 	protected void onReportAdded(Report r)
 	{
 		super.onReportAdded(r);
-		if( r.getResort().isWakeupEnabled() ) {
+		/*
+		 * Don't wake anyone up based on a report which could not be refreshed
+		 */
+		if( r.getResort().isWakeupEnabled() && !r.hasRefreshError() ) {
 			if (r.meetsPreference(getSnowSettings())) {
 				Log.i("Resort " + r.getResort() + " met preference " + getSnowSettings());
 				/**
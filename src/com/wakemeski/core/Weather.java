@@ -42,7 +42,8 @@ public class Weather implements Parcelable {
 		mUnits = units;
 	}
 
-	private boolean meetsThreshold(SnowSettingsSharedPreference pref, Matcher m) {
+	private static boolean meetsThreshold(SnowSettingsSharedPreference pref, Matcher m,
+			SnowUnits units) {
 		/*
 		 * Look for the upper accumulation value
 		 */
@@ -55,7 +56,7 @@ public class Weather implements Parcelable {
 				Log.e("Unable to parse snow total to int: " + snowTotalString);
 			}
 		}
-		return pref.meetsPreference(snowTotal, mUnits);
+		return pref.meetsPreference(snowTotal, units);
 	}
 
 	/**
@@ -65,12 +66,24 @@ public class Weather implements Parcelable {
 	 * @return true if
 	 */
 	public boolean hasSnowAlert(SnowSettingsSharedPreference pref, WakeMeSkiServer server) {
-		String expressions[] = server.getServerInfo().getAlertExpressions();
+		return hasSnowAlert(mDesc, mUnits, pref, server.getServerInfo());
+	}
+
+	/**
+	 * As hasSnowAlert(SnowSettingsSharedPreference, WakeMeSkiServer) for a
+	 * forecast description, so report forecasts can be checked without
+	 * creating a Weather for each period
+	 * @param desc forecast description
+	 * @param units units of snow totals in desc
+	 * @param serverInfo contains regular expressions used to detect snow alerts
+	 */
+	public static boolean hasSnowAlert(String desc, SnowUnits units,
+			SnowSettingsSharedPreference pref, WakeMeSkiServerInfo serverInfo) {
+		Pattern patterns[] = serverInfo.getAlertPatterns();
 
-		for( String expression: expressions ) {
-			Pattern p = Pattern.compile(expression);
-			Matcher m = p.matcher(mDesc);
-			if( m.find() && meetsThreshold(pref, m) )
+		for( Pattern p: patterns ) {
+			Matcher m = p.matcher(desc);
+			if( m.find() && meetsThreshold(pref, m, units) )
 				return true;
 		}
 
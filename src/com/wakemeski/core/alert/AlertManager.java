@@ -37,7 +37,8 @@ import com.wakemeski.R;
 import com.wakemeski.core.Location;
 import com.wakemeski.core.Report;
 import com.wakemeski.core.Resort;
-import com.wakemeski.core.WakeMeSkiServer;
+import com.wakemeski.core.SnowUnits;
+import com.wakemeski.core.WakeMeSkiServerInfo;
 import com.wakemeski.core.Weather;
 import com.wakemeski.pref.SnowSettingsSharedPreference;
 import com.wakemeski.ui.AlertsActivity;
@@ -167,36 +168,48 @@ public class AlertManager {
 	}
 
 	public void updateAlert(long id, Weather w) {
+		updateAlert(id, w.getDesc());
+	}
+
+	private void updateAlert(long id, String desc) {
 		ContentValues alert = new ContentValues();
-	    alert.put("desc", w.getDesc());
+	    alert.put("desc", desc);
 
 		mDB.update("alerts", alert, "_id=?", new String[] {Long.toString(id)});
 	}
 
-	private void insertAlert(Weather w, long resortId) {
+	private void insertAlert(long exact, String desc, long resortId) {
 		SQLiteStatement insertAlert = mDB
 			.compileStatement("INSERT INTO alerts (time,desc,acked,resort) values (?, ?, ?, ?)");
 
 
-		insertAlert.bindLong(1, w.getExact());
-		insertAlert.bindString(2, w.getDesc());
+		insertAlert.bindLong(1, exact);
+		insertAlert.bindString(2, desc);
 		insertAlert.bindLong(3, 0);
 		insertAlert.bindLong(4, resortId);
 		insertAlert.executeInsert();
 		insertAlert.close();
 	}
 
-	public void addAlerts(Report r, WakeMeSkiServer server) {
+	public void addAlerts(Report r) {
 		SnowSettingsSharedPreference prefs = getNotifySnowSettings();
-		for (Weather w : r.getWeather()) {
-			if (w.hasSnowAlert(prefs, server)) {
+		SnowUnits units = r.getSnowUnits();
+		/*
+		 * The alert expressions of the server the report came from, so
+		 * checking a report never waits on server_info.php
+		 */
+		WakeMeSkiServerInfo serverInfo = r.getServerInfo();
+		for (int i = 0; i < r.getForecastCount(); i++) {
+			String desc = r.getForecastDesc(i);
+			if (Weather.hasSnowAlert(desc, units, prefs, serverInfo)) {
 				long rid = getResortID(r.getResort().getLocation());
 
-				long wid = findAlert(w.getExact(), rid);
+				long exact = r.getForecastExact(i);
+				long wid = findAlert(exact, rid);
 				if( wid == -1 )
-					insertAlert(w, rid);
+					insertAlert(exact, desc, rid);
 				else
-					updateAlert(wid, w);
+					updateAlert(wid, desc);
 			}
 		}
 	}
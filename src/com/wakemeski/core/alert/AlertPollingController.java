@@ -20,9 +20,13 @@ import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 
 import com.wakemeski.Log;
 import com.wakemeski.ui.OnAlarmReceiver;
+import com.wakemeski.ui.WakeMeSkiPreferences;
 
 /**
  * A class to control the turn on/off of polling for snow alerts using
@@ -32,6 +36,17 @@ public class AlertPollingController {
 
 	Context mContext;
 
+	/**
+	 * Interval between alert checks unless the server asks for less frequent polling
+	 */
+	public static final long DEFAULT_POLL_INTERVAL_MS = AlarmManager.INTERVAL_HOUR;
+
+	/*
+	 * The poll interval last scheduled, kept so the alarm is only re-scheduled
+	 * when the server's minimum poll interval changes it
+	 */
+	private static final String POLL_INTERVAL_PREF_KEY = "alert_poll_interval_ms";
+
 	private static AlertPollingController mInstance = null;
 
 	private AlertPollingController(Context c) {
@@ -61,11 +76,54 @@ public class AlertPollingController {
 	 * Enable the periodic wakeup check for alerts
 	 */
 	public void enableAlertPolling() {
-		Log.d("Enabling alert polling");
+		schedule(0, getPollIntervalMs());
+	}
+
+	/**
+	 * @param firstCheckTime elapsed realtime of the first check
+	 */
+	private void schedule(long firstCheckTime, long intervalMs) {
+		Log.d("Enabling alert polling every " + intervalMs + "ms");
 		AlarmManager mgr = (AlarmManager) mContext
 								.getSystemService(Context.ALARM_SERVICE);
 		mgr.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
-								0, AlarmManager.INTERVAL_HOUR, getPendingIntent());
+								firstCheckTime, intervalMs, getPendingIntent());
+	}
+
+	private SharedPreferences getSharedPreferences() {
+		return PreferenceManager.getDefaultSharedPreferences(mContext);
+	}
+
+	/**
+	 * @return the interval between alert checks
+	 */
+	public long getPollIntervalMs() {
+		return getSharedPreferences().getLong(POLL_INTERVAL_PREF_KEY, DEFAULT_POLL_INTERVAL_MS);
+	}
+
+	/**
+	 * Slows alert polling down to the minimum poll interval advertised by the
+	 * server, or back to DEFAULT_POLL_INTERVAL_MS when the server no longer asks
+	 * for it.  Re-schedules polling if it is enabled and the interval changed.
+	 * @param minIntervalMs minimum poll interval from server_info.php, 0 for none
+	 */
+	public void setServerMinPollIntervalMs(long minIntervalMs) {
+		long interval = Math.max(DEFAULT_POLL_INTERVAL_MS, minIntervalMs);
+		SharedPreferences prefs = getSharedPreferences();
+		if( interval == getPollIntervalMs() ) {
+			return;
+		}
+		SharedPreferences.Editor editor = prefs.edit();
+		editor.putLong(POLL_INTERVAL_PREF_KEY, interval);
+		if( !editor.commit() ) {
+			Log.w("Poll interval pref commit failed");
+		}
+		if( WakeMeSkiPreferences.isAlertNotificationEnabled(prefs) ) {
+			/*
+			 * A check just ran, so the next one is a full interval away
+			 */
+			schedule(SystemClock.elapsedRealtime() + interval, interval);
+		}
 	}
 
 	/**
@@ -194,7 +194,7 @@ public class LocationFinderActivity extends ListActivity {
 			Bundle b = new Bundle();
 			try {
 
-				WakeMeSkiServer srv = new WakeMeSkiServer(getApplicationContext());
+				WakeMeSkiServer srv = WakeMeSkiServer.getInstance(getApplicationContext());
 				LocationFinder finder = new LocationFinder(srv);
 
 				if (_region == null) {
@@ -36,10 +36,15 @@ import android.widget.TextView.BufferType;
 import com.wakemeski.Log;
 import com.wakemeski.R;
 import com.wakemeski.core.Report;
-import com.wakemeski.core.Weather;
+import com.wakemeski.core.WakeMeSkiFactory;
 
 public class ReportActivity extends Activity {
 
+	/**
+	 * Intent extra holding the Resort.getId() of the resort whose report is shown
+	 */
+	public static final String EXTRA_RESORT_ID = "resort_id";
+
 	private static final int WEATHER_ID  = Menu.FIRST;
 	private static final int DETAILS_ID  = WEATHER_ID + 1;
 	private static final int LOCATION_ID = DETAILS_ID + 1;
@@ -53,7 +58,21 @@ public class ReportActivity extends Activity {
 		super.onCreate(icicle);
 		setContentView(R.layout.report);
 
-		Report r = (Report) getIntent().getParcelableExtra("report");
+		/*
+		 * The report is looked up rather than passed in the intent to avoid
+		 * marshalling it
+		 */
+		String resortId = getIntent().getStringExtra(EXTRA_RESORT_ID);
+		Report r = null;
+		if( resortId != null ) {
+			r = WakeMeSkiFactory.getInstance(getApplicationContext())
+				.getReportController().getReport(resortId);
+		}
+		if( r == null ) {
+			Log.w("No report for resort " + resortId);
+			finish();
+			return;
+		}
 		mReport = r;
 
 		// Title
@@ -110,8 +129,8 @@ public class ReportActivity extends Activity {
 
 		// Weather Forecast
 		ViewGroup vg = (ViewGroup)findViewById(R.id.weather_list);
-		for(Weather w: r.getWeather()) {
-			addForecast(vg, w);
+		for(int i = 0; i < r.getForecastCount(); i++) {
+			addForecast(vg, r.getForecastWhen(i), r.getForecastDesc(i));
 		}
 
 		// Report Comments (optional)
@@ -123,13 +142,10 @@ public class ReportActivity extends Activity {
 		}
 	}
 
-	private void addForecast(ViewGroup vg, Weather w) {
+	private void addForecast(ViewGroup vg, String when, String desc) {
 		LayoutInflater li = getLayoutInflater();
 		View v = li.inflate(R.layout.weather_item, null);
 
-		String when = w.getWhen();
-		String desc = w.getDesc();
-
 		EditText tv = (EditText)v.findViewById(R.id.weather_item_txt);
 		tv.setText(when + ": " + desc, BufferType.SPANNABLE);
 
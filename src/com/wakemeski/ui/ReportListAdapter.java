@@ -21,6 +21,7 @@ import android.content.Context;
 import android.database.DataSetObservable;
 import android.database.DataSetObserver;
 import android.os.Handler;
+import android.text.format.DateUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -46,13 +47,28 @@ public class ReportListAdapter implements ListAdapter {
 
 	private final ReportController mReportController;
 
+	private final Context mContext;
+
+	/*
+	 * Reports older than this show their age, they could not be refreshed
+	 */
+	private static final long SHOW_AGE_MS = DateUtils.HOUR_IN_MILLIS;
+
 	public ReportListAdapter(Context c) {
+		mContext = c;
 		mInflater = (LayoutInflater) c
 				.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
 
 		mReportController = WakeMeSkiFactory.getInstance(c).getReportController();
 
-		mReportController.addListenerAndUpdateReports(mListener,true);
+		/*
+		 * Start with the reports the controller already has, including those
+		 * restored from the last run, rather than an empty list
+		 */
+		mReports = mReportController.getSortedReportList();
+
+		mReportController.addListenerAndUpdateReports(mListener,true,
+				ReportController.UseCase.DASHBOARD,0);
 	}
 
 	@Override
@@ -114,6 +130,9 @@ public class ReportListAdapter implements ListAdapter {
 			tv = (TextView) v.findViewById(R.id.snow_value);
 			if( r.hasErrors() )
 				tv.setText(R.string.fresh_not_available);
+			else if( r.getAgeMs() >= SHOW_AGE_MS )
+				tv.setText(mContext.getString(R.string.report_age_hours,
+						r.getFreshAsString(), (int)(r.getAgeMs() / DateUtils.HOUR_IN_MILLIS)));
 			else
 				tv.setText(r.getFreshAsString());
 
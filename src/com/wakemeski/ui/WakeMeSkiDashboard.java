@@ -328,7 +328,7 @@ public class WakeMeSkiDashboard extends Activity {
 			Report r = (Report)mListAdapter.getItem(pos);
 			if( r != null ) {
 				Intent i = new Intent(WakeMeSkiDashboard.this, ReportActivity.class);
-				i.putExtra("report", r);
+				i.putExtra(ReportActivity.EXTRA_RESORT_ID, r.getResort().getId());
 				startActivityForResult(i, 0);
 			}
 		}
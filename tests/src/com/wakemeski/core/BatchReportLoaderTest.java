@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2010 Dan Walkes, Andy Doan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wakemeski.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks BatchReportLoader against a StandInServer which advertises a
+ * report.batch.max of BATCH_MAX
+ */
+public class BatchReportLoaderTest extends AndroidTestCase {
+
+	private static final int BATCH_MAX = 2;
+
+	private StandInServer mStandIn;
+	private WakeMeSkiServer mServer;
+	private Resort mResorts[];
+	private Report mLoaded[];
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mStandIn = new StandInServer();
+		mStandIn.setResponse("/server_info.php",
+				"server.version = 3",
+				"report.batch.max = " + BATCH_MAX);
+		mServer = new WakeMeSkiServer(getContext(), mStandIn.getUrl());
+		mResorts = new Resort[5];
+		for (int i = 0; i < mResorts.length; i++) {
+			mResorts[i] = new Resort("Resort " + i, "report.php?location=R" + i);
+		}
+		mLoaded = new Report[mResorts.length];
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mStandIn.close();
+		super.tearDown();
+	}
+
+	/**
+	 * @return the path prefix of the batch request for resorts[start, start + count)
+	 */
+	private String getBatchPath(int start, int count) {
+		StringBuffer sb = new StringBuffer(BatchReportLoader.BATCH_URL);
+		sb.append("?count=").append(count);
+		for (int i = 0; i < count; i++) {
+			sb.append("&loc").append(i).append("=report.php%3Flocation%3DR").append(start + i);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Answers the batch request for resorts[start, start + count), leaving
+	 * out the resort at index omit
+	 */
+	private void setBatchResponse(int start, int count, int omit) {
+		List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			if (start + i == omit) {
+				continue;
+			}
+			lines.add("report.begin = " + i);
+			lines.add("location = R" + (start + i));
+			lines.add("snow.fresh = " + (start + i));
+			lines.add("report.end = " + i);
+		}
+		mStandIn.setResponse(getBatchPath(start, count), lines.toArray(new String[lines.size()]));
+	}
+
+	private boolean[] loadInBatches() {
+		WakeMeSkiServerInfo info = mServer.getServerInfo();
+		return new BatchReportLoader(mServer, info).loadInBatches(mResorts, null,
+				info.getReportBatchMax(),
+				new BatchReportLoader.Listener() {
+					@Override
+					public void onReportLoaded(int index, Report r) {
+						mLoaded[index] = r;
+					}
+				}, null);
+	}
+
+	private int getBatchRequestCount() {
+		int count = 0;
+		for (String path : mStandIn.getRequestPaths()) {
+			if (path.startsWith(BatchReportLoader.BATCH_URL)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Resorts are split into requests of at most report.batch.max resorts
+	 */
+	public void testSplitsByBatchMax() {
+		setBatchResponse(0, 2, -1);
+		setBatchResponse(2, 2, -1);
+		setBatchResponse(4, 1, -1);
+
+		boolean loaded[] = loadInBatches();
+
+		assertEquals(3, getBatchRequestCount());
+		for (int i = 0; i < mResorts.length; i++) {
+			assertTrue("Resort " + i + " not loaded", loaded[i]);
+			assertSame(mResorts[i], mLoaded[i].getResort());
+			assertEquals(i, mLoaded[i].getFreshSnowTotal());
+		}
+	}
+
+	/**
+	 * A resort left out of a batch response is left for an individual request
+	 * and the following batches are still requested
+	 */
+	public void testOmittedResortLoadedIndividually() {
+		setBatchResponse(0, 2, 1);
+		setBatchResponse(2, 2, -1);
+		setBatchResponse(4, 1, -1);
+
+		boolean loaded[] = loadInBatches();
+
+		assertEquals(3, getBatchRequestCount());
+		assertFalse(loaded[1]);
+		assertNull(mLoaded[1]);
+		for (int i : new int[] { 0, 2, 3, 4 }) {
+			assertTrue("Resort " + i + " not loaded", loaded[i]);
+		}
+	}
+
+	/**
+	 * When the server can't answer batch requests no more are made and every
+	 * resort is left for an individual request
+	 */
+	public void testFallsBackWhenBatchFails() {
+		/*
+		 * No batch responses are set so the stand in server answers 404
+		 */
+		boolean loaded[] = loadInBatches();
+
+		assertEquals(1, getBatchRequestCount());
+		for (int i = 0; i < mResorts.length; i++) {
+			assertFalse(loaded[i]);
+			assertNull(mLoaded[i]);
+		}
+	}
+
+	/**
+	 * No batch requests are made to a server without report.batch.max
+	 */
+	public void testNoBatchesWithoutBatchMax() {
+		boolean loaded[] = new BatchReportLoader(mServer, mServer.getServerInfo()).loadInBatches(
+				mResorts, null, 1,
+				new BatchReportLoader.Listener() {
+					@Override
+					public void onReportLoaded(int index, Report r) {
+						fail("No report expected");
+					}
+				}, null);
+
+		assertEquals(0, getBatchRequestCount());
+		assertEquals(mResorts.length, loaded.length);
+	}
+}
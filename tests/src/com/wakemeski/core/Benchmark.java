@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2010 Dan Walkes, Andy Doan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wakemeski.core;
+
+import android.os.Debug;
+
+/**
+ * Times an operation for the benchmarks in this package and counts the bytes
+ * the operation allocates with Dalvik's allocation counters.
+ *
+ * Results are printed to System.out, which goes to the log on a device.
+ */
+class Benchmark {
+
+	/**
+	 * The operation being measured
+	 */
+	interface Op {
+		/**
+		 * @return any value computed by the operation, summed so the work
+		 * can't be optimized away
+		 */
+		int run() throws Exception;
+	}
+
+	/**
+	 * Time and allocation per operation
+	 */
+	static class Result {
+		final String mName;
+		final double mNsPerOp;
+		final long mBytesPerOp;
+
+		Result(String name, double nsPerOp, long bytesPerOp) {
+			mName = name;
+			mNsPerOp = nsPerOp;
+			mBytesPerOp = bytesPerOp;
+		}
+
+		/**
+		 * @return operations per second
+		 */
+		double getOpsPerSec() {
+			return 1e9 / mNsPerOp;
+		}
+
+		@Override
+		public String toString() {
+			return mName + ": " + Math.round(mNsPerOp) + " ns/op, " +
+				mBytesPerOp + " bytes/op";
+		}
+	}
+
+	static volatile int sSink;
+
+	/**
+	 * Runs op iterations times to warm up, iterations times timed, then
+	 * iterations times counting allocations.  Allocations are counted in a
+	 * separate pass since counting them slows every allocation down.
+	 */
+	static Result run(String name, int iterations, Op op) throws Exception {
+		int sink = 0;
+		for (int i = 0; i < iterations; i++) {
+			sink += op.run();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sink += op.run();
+		}
+		long ns = System.nanoTime() - start;
+
+		Debug.resetThreadAllocCount();
+		Debug.startAllocCounting();
+		try {
+			for (int i = 0; i < iterations; i++) {
+				sink += op.run();
+			}
+		} finally {
+			Debug.stopAllocCounting();
+		}
+		long bytes = Debug.getThreadAllocSize();
+		sSink = sink;
+		Result r = new Result(name, (double) ns / iterations, bytes / iterations);
+		System.out.println(r);
+		return r;
+	}
+
+	/**
+	 * @return bytes of heap in use after collecting garbage, to measure the
+	 * heap retained by objects kept reachable across two calls
+	 */
+	static long getUsedHeapBytes() throws InterruptedException {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+			System.runFinalization();
+			Thread.sleep(20);
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2010 Dan Walkes, Andy Doan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wakemeski.core;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the pooled HttpClient against a StandInServer by counting the
+ * connections it accepts
+ */
+public class HttpUtilsTest extends TestCase {
+
+	private static final String REPORT_PATH = "/report.php";
+
+	private StandInServer mServer;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mServer = new StandInServer();
+		mServer.setResponse(REPORT_PATH, "location = ALTA", "snow.fresh = 4");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mServer.close();
+		super.tearDown();
+	}
+
+	private Callable<String[]> newFetch(final String url) {
+		return new Callable<String[]>() {
+			@Override
+			public String[] call() throws Exception {
+				return HttpUtils.fetchUrl(url);
+			}
+		};
+	}
+
+	/**
+	 * Back to back requests re-use one keep-alive connection
+	 */
+	public void testSequentialRequestsShareConnection() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			String lines[] = HttpUtils.fetchUrl(mServer.getUrl() + REPORT_PATH + "?location=" + i);
+			assertEquals(2, lines.length);
+			assertEquals("location = ALTA", lines[0]);
+		}
+		assertEquals(5, mServer.getRequestCount());
+		assertEquals(1, mServer.getConnectionCount());
+	}
+
+	/**
+	 * An error response still returns its connection to the pool
+	 */
+	public void testErrorResponseReleasesConnection() throws Exception {
+		try {
+			HttpUtils.fetchUrl(mServer.getUrl() + "/missing.php");
+			fail("Expected an exception for a 404 response");
+		} catch (org.apache.http.client.HttpResponseException hre) {
+			assertEquals(404, hre.getStatusCode());
+		}
+		HttpUtils.fetchUrl(mServer.getUrl() + REPORT_PATH);
+		assertEquals(2, mServer.getRequestCount());
+		assertEquals(1, mServer.getConnectionCount());
+	}
+
+	/**
+	 * A listener which throws part way through a response doesn't keep its
+	 * connection out of the pool
+	 */
+	public void testListenerExceptionReleasesConnection() throws Exception {
+		for (int i = 0; i <= HttpUtils.MAX_CONNECTIONS_PER_HOST; i++) {
+			try {
+				HttpUtils.fetchUrl(mServer.getUrl() + REPORT_PATH + "?bad=" + i, null,
+						new HttpUtils.LineListener() {
+							@Override
+							public void onLine(String line) {
+								throw new IllegalStateException("Parser bug");
+							}
+						}, 0);
+				fail("Expected the listener's exception");
+			} catch (IllegalStateException ise) {
+				// expected
+			}
+		}
+		String lines[] = HttpUtils.fetchUrl(mServer.getUrl() + REPORT_PATH, 1000);
+		assertEquals(2, lines.length);
+	}
+
+	/**
+	 * Concurrent requests never open more than MAX_CONNECTIONS_PER_HOST
+	 * connections to one server, the rest wait for a pooled connection
+	 */
+	public void testConcurrentRequestsLimitedPerHost() throws Exception {
+		mServer.setDelayMs(200);
+		int count = HttpUtils.MAX_CONNECTIONS_PER_HOST * 2 + 1;
+		ExecutorService executor = Executors.newFixedThreadPool(count);
+		try {
+			List<Future<String[]>> fetches = new ArrayList<Future<String[]>>();
+			for (int i = 0; i < count; i++) {
+				fetches.add(executor.submit(newFetch(mServer.getUrl() + REPORT_PATH + "?n=" + i)));
+			}
+			for (Future<String[]> f : fetches) {
+				assertEquals(2, f.get().length);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(count, mServer.getRequestCount());
+		assertTrue("Opened " + mServer.getConnectionCount() + " connections",
+				mServer.getConnectionCount() <= HttpUtils.MAX_CONNECTIONS_PER_HOST);
+	}
+
+	/**
+	 * Waiting for a connection from a full pool is bounded by the request
+	 * timeout
+	 */
+	public void testPoolWaitBoundedByTimeout() throws Exception {
+		long delayMs = 3000;
+		int timeoutMs = 500;
+		mServer.setDelayMs(delayMs);
+		ExecutorService executor =
+			Executors.newFixedThreadPool(HttpUtils.MAX_CONNECTIONS_PER_HOST);
+		try {
+			for (int i = 0; i < HttpUtils.MAX_CONNECTIONS_PER_HOST; i++) {
+				executor.submit(newFetch(mServer.getUrl() + REPORT_PATH + "?busy=" + i));
+			}
+			/*
+			 * Let the slow requests take every pooled connection
+			 */
+			long waitUntil = System.currentTimeMillis() + delayMs / 2;
+			while (mServer.getConnectionCount() < HttpUtils.MAX_CONNECTIONS_PER_HOST &&
+					System.currentTimeMillis() < waitUntil) {
+				Thread.sleep(10);
+			}
+			assertEquals(HttpUtils.MAX_CONNECTIONS_PER_HOST, mServer.getConnectionCount());
+
+			long start = System.currentTimeMillis();
+			try {
+				HttpUtils.fetchUrl(mServer.getUrl() + REPORT_PATH + "?waiting", timeoutMs);
+				fail("Expected the wait for a pooled connection to time out");
+			} catch (InterruptedIOException iioe) {
+				long waited = System.currentTimeMillis() - start;
+				assertTrue("Waited " + waited + "ms", waited < delayMs / 2);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
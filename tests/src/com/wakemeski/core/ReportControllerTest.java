@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2010 Dan Walkes, Andy Doan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wakemeski.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks which reports ReportController loads for listeners against a
+ * StandInServer
+ */
+public class ReportControllerTest extends AndroidTestCase {
+
+	private static final long WAIT_MS = 10000;
+
+	private StandInServer mStandIn;
+	private ReportController mController;
+
+	/*
+	 * A resort without a report, so stale for every use case
+	 */
+	private Resort mMissing;
+
+	/*
+	 * A resort with a 30 minute old report, stale for WAKE_CHECK but not for
+	 * DASHBOARD
+	 */
+	private Resort mOld;
+
+	/**
+	 * Records the reports and loading calls a listener receives
+	 */
+	private static class RecordingListener implements ReportListener {
+		final List<Report> mAdded = new ArrayList<Report>();
+		final CountDownLatch mLoaded = new CountDownLatch(1);
+
+		@Override
+		public synchronized void onAdded(Report r) {
+			mAdded.add(r);
+		}
+
+		@Override
+		public void onLoading(boolean started) {
+			if (!started) {
+				mLoaded.countDown();
+			}
+		}
+
+		@Override
+		public void onUpdated() {
+		}
+
+		@Override
+		public void onBusy(boolean isBusy) {
+		}
+
+		/**
+		 * @return the last report added for resort, or null if none was added
+		 */
+		synchronized Report getReport(Resort resort) {
+			Report found = null;
+			for (Report r : mAdded) {
+				if (r.getResort().equals(resort)) {
+					found = r;
+				}
+			}
+			return found;
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mStandIn = new StandInServer();
+		mStandIn.setResponse("/server_info.php", "server.version = 3");
+		mStandIn.setResponse("/report.php?location=MISSING", "location = MISSING", "snow.fresh = 1");
+		mStandIn.setResponse("/report.php?location=OLD", "location = OLD", "snow.fresh = 2");
+		mMissing = new Resort("Missing", "report.php?location=MISSING");
+		mOld = new Resort("Old", "report.php?location=OLD");
+
+		ReportStore store = ReportStore.getInstance(getContext());
+		store.clear();
+		Report.ReportParser parser = new Report.ReportParser(mOld,
+				mStandIn.getUrl() + "/report.php?location=OLD", null);
+		parser.setFetchTimeMs(System.currentTimeMillis() - 30 * 60 * 1000);
+		parser.parseLine("location = OLD");
+		parser.parseLine("snow.fresh = 1");
+		store.put(parser.finish(new WakeMeSkiServerInfo()));
+
+		mController = new ReportController(getContext(), new ResortManager() {
+			@Override
+			public Resort[] getResorts() {
+				return new Resort[] { mMissing, mOld };
+			}
+		}, new WakeMeSkiServer(getContext(), mStandIn.getUrl()));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mStandIn.close();
+		ReportStore.getInstance(getContext()).clear();
+		super.tearDown();
+	}
+
+	private int getRequestCount(String location) {
+		int count = 0;
+		for (String path : mStandIn.getRequestPaths()) {
+			if (path.startsWith("/report.php?location=" + location)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * A WAKE_CHECK listener registering while a DASHBOARD load is running has
+	 * the reports too old for it loaded too, before it is told loading is done
+	 */
+	public void testWakeCheckDuringDashboardLoad() throws Exception {
+		mStandIn.setDelayMs(300);
+		RecordingListener dashboard = new RecordingListener();
+		mController.addListenerAndUpdateReports(dashboard, true,
+				ReportController.UseCase.DASHBOARD, 0);
+		RecordingListener wakeCheck = new RecordingListener();
+		mController.addListenerAndUpdateReports(wakeCheck, true,
+				ReportController.UseCase.WAKE_CHECK, 0);
+
+		assertTrue(wakeCheck.mLoaded.await(WAIT_MS, TimeUnit.MILLISECONDS));
+		assertTrue(dashboard.mLoaded.await(WAIT_MS, TimeUnit.MILLISECONDS));
+
+		Report old = wakeCheck.getReport(mOld);
+		assertNotNull("No report for the resort too old for WAKE_CHECK", old);
+		assertTrue("Report is " + old.getAgeMs() + "ms old", old.getAgeMs() < 60 * 1000);
+		assertEquals(2, old.getFreshSnowTotal());
+		assertNotNull(wakeCheck.getReport(mMissing));
+
+		/*
+		 * The resort being loaded by the DASHBOARD load isn't loaded twice
+		 */
+		assertEquals(1, getRequestCount("MISSING"));
+		assertEquals(1, getRequestCount("OLD"));
+	}
+
+	/**
+	 * Measures the CPU time and allocations of a background alert poll
+	 */
+	public void testBackgroundPollCost() throws Exception {
+		ReportController.mCountAllocations = true;
+		try {
+			RecordingListener poll = new RecordingListener();
+			mController.addListenerAndUpdateReports(poll, true,
+					ReportController.UseCase.ALERT_POLL, 0);
+			assertTrue(poll.mLoaded.await(WAIT_MS, TimeUnit.MILLISECONDS));
+		} finally {
+			ReportController.mCountAllocations = false;
+		}
+		LoadTimings timings = mController.getLastLoadTimings();
+		assertNotNull(timings);
+		System.out.println("Background poll of 2 resorts: cpu " + timings.getCpuNs() / 1000 +
+				"us, allocated " + timings.getAllocatedBytes() + " bytes");
+		assertTrue(timings.getCpuNs() > 0);
+		assertTrue(timings.getAllocatedBytes() > 0);
+	}
+
+	/**
+	 * A DASHBOARD listener registering while the same resorts are loading
+	 * doesn't start another load
+	 */
+	public void testDashboardDuringDashboardLoad() throws Exception {
+		mStandIn.setDelayMs(300);
+		RecordingListener first = new RecordingListener();
+		mController.addListenerAndUpdateReports(first, true,
+				ReportController.UseCase.DASHBOARD, 0);
+		RecordingListener second = new RecordingListener();
+		mController.addListenerAndUpdateReports(second, true,
+				ReportController.UseCase.DASHBOARD, 0);
+
+		assertTrue(second.mLoaded.await(WAIT_MS, TimeUnit.MILLISECONDS));
+		assertNotNull(second.getReport(mMissing));
+		assertEquals(1, getRequestCount("MISSING"));
+		assertEquals(0, getRequestCount("OLD"));
+	}
+}
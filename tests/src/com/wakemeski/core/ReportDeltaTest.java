@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2010 Dan Walkes, Andy Doan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wakemeski.core;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.test.AndroidTestCase;
+
+/**
+ * Checks report delta requests against a StandInServer which advertises
+ * report.delta in its server info
+ */
+public class ReportDeltaTest extends AndroidTestCase {
+
+	private static final String REPORT_PATH = "/report.php?location=ALTA";
+
+	private StandInServer mStandIn;
+	private WakeMeSkiServer mServer;
+	private WakeMeSkiServerInfo mServerInfo;
+	private ConnectivityManager mConnectivityManager;
+	private Resort mResort;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mStandIn = new StandInServer();
+		mStandIn.setResponse("/server_info.php",
+				"server.version = 3",
+				"report.delta = 1");
+		mStandIn.setResponse(REPORT_PATH,
+				"location = ALTA",
+				"date = 12-6-2008",
+				"report.version = v1",
+				"lifts.open = 5",
+				"snow.fresh = 4",
+				"snow.units = inches");
+		mServer = new WakeMeSkiServer(getContext(), mStandIn.getUrl());
+		mServerInfo = mServer.getServerInfo();
+		mConnectivityManager = (ConnectivityManager)
+			getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+		mResort = new Resort("Alta", "report.php?location=ALTA");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mStandIn.close();
+		super.tearDown();
+	}
+
+	private Report load(Report previous) {
+		return Report.loadReport(getContext(), mConnectivityManager, mResort, mServer,
+				mServerInfo, null, 0, previous);
+	}
+
+	/**
+	 * @return the paths of the report requests made so far, in order
+	 */
+	private String[] getReportPaths() {
+		ArrayList<String> reportPaths = new ArrayList<String>();
+		for (String path : mStandIn.getRequestPaths()) {
+			if (path.startsWith(REPORT_PATH)) {
+				reportPaths.add(path);
+			}
+		}
+		return reportPaths.toArray(new String[reportPaths.size()]);
+	}
+
+	/**
+	 * The changes in a delta response replace the matching lines of the
+	 * previous report and the report takes the new version
+	 */
+	public void testDeltaMerged() {
+		assertTrue(mServerInfo.supportsReportDelta());
+		mStandIn.setResponse(REPORT_PATH + "&since=v1",
+				"report.delta = v1",
+				"report.version = v2",
+				"snow.fresh = 6",
+				"lifts.open = ");
+
+		Report full = load(null);
+		Report merged = load(full);
+
+		String paths[] = getReportPaths();
+		assertEquals(2, paths.length);
+		assertFalse(paths[0], paths[0].indexOf("since=") >= 0);
+		assertTrue(paths[1], paths[1].startsWith(REPORT_PATH + "&since=v1"));
+
+		assertFalse(merged.getNonLocalizedError(), merged.hasErrors());
+		assertEquals("v1", full.getVersion());
+		assertEquals("v2", merged.getVersion());
+		assertEquals(6, merged.getFreshSnowTotal());
+		assertEquals(4, full.getFreshSnowTotal());
+		assertEquals(5, full.getLiftsOpen());
+		/*
+		 * An empty value clears the key
+		 */
+		assertEquals(0, merged.getLiftsOpen());
+		assertEquals("12-6-2008", merged.getDate());
+	}
+
+	/**
+	 * A delta against a different version than the previous report is
+	 * dropped and the full report is requested instead
+	 */
+	public void testVersionMismatchLoadsFullReport() {
+		mStandIn.setResponse(REPORT_PATH + "&since=v1",
+				"report.delta = v0",
+				"report.version = v2",
+				"snow.fresh = 6");
+
+		Report full = load(null);
+		mStandIn.setResponse(REPORT_PATH,
+				"location = ALTA",
+				"date = 12-7-2008",
+				"report.version = v3",
+				"snow.fresh = 8");
+		Report reloaded = load(full);
+
+		String paths[] = getReportPaths();
+		assertEquals(3, paths.length);
+		assertTrue(paths[1], paths[1].startsWith(REPORT_PATH + "&since=v1"));
+		assertFalse(paths[2], paths[2].indexOf("since=") >= 0);
+
+		assertFalse(reloaded.getNonLocalizedError(), reloaded.hasErrors());
+		assertEquals("v3", reloaded.getVersion());
+		assertEquals(8, reloaded.getFreshSnowTotal());
+		assertEquals("12-7-2008", reloaded.getDate());
+	}
+
+	/**
+	 * No changes are requested against a report the server gave no version
+	 */
+	public void testNoDeltaWithoutVersion() {
+		mStandIn.setResponse(REPORT_PATH, "location = ALTA", "snow.fresh = 4");
+
+		Report full = load(null);
+		load(full);
+
+		String paths[] = getReportPaths();
+		assertEquals(2, paths.length);
+		assertFalse(paths[1], paths[1].indexOf("since=") >= 0);
+	}
+}
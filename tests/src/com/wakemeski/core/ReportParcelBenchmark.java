@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2010 Dan Walkes, Andy Doan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wakemeski.core;
+
+import android.os.Parcel;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the versioned Parcelable encoding of Report and Resort with the
+ * encoding it replaced, which wrote forecast descriptions in full and the
+ * resort with writeSerializable(), on a report with a large forecast
+ */
+public class ReportParcelBenchmark extends TestCase {
+
+	private static final int ITERATIONS = 20000;
+
+	/*
+	 * Two weeks of forecast periods, the descriptions repeat as the NWS
+	 * forecasts do
+	 */
+	private static final int FORECAST_PERIODS = 14;
+	private static final String DESCRIPTIONS[] = {
+		"Snow showers likely.  Mostly cloudy, with a high near 28.",
+		"Snow.  Low around 15.  New snow accumulation of 4 to 8 inches possible.",
+		"A chance of snow showers.  Partly sunny, with a high near 25.",
+		"Mostly cloudy, with a low around 10.",
+		"Sunny, with a high near 30.",
+	};
+
+	private static final String LOCATION = "ALTA";
+	private static final String TRAILS_PERCENT_OPEN = "69";
+	private static final String LATITUDE = "40.5884";
+	private static final String LONGITUDE = "-111.6386";
+
+	private Report mReport;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		Report.ReportParser p = new Report.ReportParser(
+				new Resort("Alta", "report.php?location=ALTA"), "u", null);
+		p.parseLine("location = " + LOCATION);
+		p.parseLine("date = 12-6-2008");
+		p.parseLine("lifts.open = 5");
+		p.parseLine("lifts.total = 10");
+		p.parseLine("trails.open = 80");
+		p.parseLine("trails.total = 116");
+		p.parseLine("trails.percent.open = " + TRAILS_PERCENT_OPEN);
+		p.parseLine("snow.total = 60 110");
+		p.parseLine("snow.daily = Fresh(4.3) 48hr(7)");
+		p.parseLine("snow.fresh = 4.3");
+		p.parseLine("snow.units = inches");
+		p.parseLine("snow.conditions = powder");
+		p.parseLine("temp.readings = 41/33 44/38");
+		p.parseLine("wind.avg = 20");
+		p.parseLine("location.latitude = " + LATITUDE);
+		p.parseLine("location.longitude = " + LONGITUDE);
+		p.parseLine("location.info = http://www.alta.com");
+		p.parseLine("details.url = http://www.alta.com/conditions");
+		p.parseLine("weather.url = http://forecast.weather.gov/MapClick.php?lat=40.58&lon=-111.63");
+		p.parseLine("weather.icon = http://forecast.weather.gov/images/wtf/sn40.jpg");
+		for (int i = 0; i < FORECAST_PERIODS; i++) {
+			p.parseLine("weather.forecast.when." + i + " = Period " + i);
+			p.parseLine("weather.forecast.when-exact." + i + " = " + (1228579200 + i * 43200));
+			p.parseLine("weather.forecast.desc." + i + " = " + DESCRIPTIONS[i % DESCRIPTIONS.length]);
+		}
+		mReport = p.finish(new WakeMeSkiServerInfo());
+	}
+
+	/**
+	 * Writes r the way Report.writeToParcel() did before the versioned
+	 * encoding.  The few fields without a getter are the values the report
+	 * was parsed from.
+	 */
+	private static void writeSerializableEncoding(Report r, Parcel dest) {
+		dest.writeString(LOCATION);
+		dest.writeString(r.getDate());
+		dest.writeString(r.getWindSpeed());
+		dest.writeString(r.getDetailsURL());
+		dest.writeString(r.getLocationURL());
+		dest.writeString(r.getLocationComments());
+
+		dest.writeInt(r.getTrailsOpen());
+		dest.writeInt(r.getTrailsTotal());
+		dest.writeString(TRAILS_PERCENT_OPEN);
+
+		dest.writeInt(r.getLiftsOpen());
+		dest.writeInt(r.getLiftsTotal());
+
+		dest.writeSerializable(r.getResort());
+		dest.writeString(r.getLocalizedError());
+		dest.writeString(r.getNonLocalizedError());
+
+		dest.writeString(r.getWeatherURL());
+		dest.writeString(r.getWeatherIcon());
+		dest.writeInt(r.getWeatherIconResId());
+		int count = r.getForecastCount();
+		String when[] = new String[count];
+		long exact[] = new long[count];
+		String desc[] = new String[count];
+		for (int i = 0; i < count; i++) {
+			when[i] = r.getForecastWhen(i);
+			exact[i] = r.getForecastExact(i);
+			desc[i] = r.getForecastDesc(i);
+		}
+		dest.writeStringArray(when);
+		dest.writeLongArray(exact);
+		dest.writeStringArray(desc);
+
+		dest.writeString(LATITUDE);
+		dest.writeString(LONGITUDE);
+
+		dest.writeString(r.getSnowConditions());
+
+		dest.writeFloat(r.getFreshSnow());
+		dest.writeInt(r.getFreshSnowTotal());
+		dest.writeInt(r.getSnowUnits() == SnowUnits.INCHES ? 1 : 0);
+
+		dest.writeStringArray(r.getSnowDepths());
+		dest.writeFloatArray(r.getSnowDepthValues());
+		dest.writeStringArray(r.getDailySnow());
+		dest.writeFloatArray(r.getDailySnowValues());
+		dest.writeStringArray(r.getTemperatureReadings());
+
+		dest.writeLong(r.getLoadTimeMs());
+		dest.writeInt(0);
+	}
+
+	/**
+	 * Reads a parcel written by writeSerializableEncoding()
+	 * @return the resort read from the parcel
+	 */
+	private static Resort readSerializableEncoding(Parcel source) {
+		for (int i = 0; i < 6; i++) {
+			source.readString();
+		}
+		source.readInt();
+		source.readInt();
+		source.readString();
+		source.readInt();
+		source.readInt();
+		Resort resort = (Resort) source.readSerializable();
+		source.readString();
+		source.readString();
+		source.readString();
+		source.readString();
+		source.readInt();
+		source.createStringArray();
+		source.createLongArray();
+		source.createStringArray();
+		source.readString();
+		source.readString();
+		source.readString();
+		source.readFloat();
+		source.readInt();
+		source.readInt();
+		source.createStringArray();
+		source.createFloatArray();
+		source.createStringArray();
+		source.createFloatArray();
+		source.createStringArray();
+		source.readLong();
+		source.readInt();
+		return resort;
+	}
+
+	private int getParcelEncodingSize() {
+		Parcel p = Parcel.obtain();
+		try {
+			mReport.writeToParcel(p, 0);
+			return p.dataSize();
+		} finally {
+			p.recycle();
+		}
+	}
+
+	private int getSerializableEncodingSize() {
+		Parcel p = Parcel.obtain();
+		try {
+			writeSerializableEncoding(mReport, p);
+			return p.dataSize();
+		} finally {
+			p.recycle();
+		}
+	}
+
+	/**
+	 * A report survives the round trip through its parcel
+	 */
+	public void testRoundTrip() {
+		Parcel p = Parcel.obtain();
+		try {
+			mReport.writeToParcel(p, 0);
+			p.setDataPosition(0);
+			Report r = Report.CREATOR.createFromParcel(p);
+			assertEquals(mReport.getResort().getId(), r.getResort().getId());
+			assertEquals(FORECAST_PERIODS, r.getForecastCount());
+			for (int i = 0; i < FORECAST_PERIODS; i++) {
+				assertEquals(mReport.getForecastDesc(i), r.getForecastDesc(i));
+				assertEquals(mReport.getForecastExact(i), r.getForecastExact(i));
+			}
+			assertEquals(mReport.getLoadTimeMs(), r.getLoadTimeMs());
+		} finally {
+			p.recycle();
+		}
+	}
+
+	public void testParcelSize() {
+		int parcel = getParcelEncodingSize();
+		int serializable = getSerializableEncodingSize();
+		System.out.println("Parcel size: serializable encoding " + serializable +
+				" bytes, versioned parcel encoding " + parcel + " bytes");
+		assertTrue(parcel < serializable);
+	}
+
+	public void testResortParcelSize() {
+		Parcel serializable = Parcel.obtain();
+		Parcel parcel = Parcel.obtain();
+		try {
+			serializable.writeSerializable(mReport.getResort());
+			mReport.getResort().writeToParcel(parcel, 0);
+			System.out.println("Resort size: writeSerializable " + serializable.dataSize() +
+					" bytes, writeToParcel " + parcel.dataSize() + " bytes");
+			assertTrue(parcel.dataSize() < serializable.dataSize());
+		} finally {
+			serializable.recycle();
+			parcel.recycle();
+		}
+	}
+
+	public void testMarshalSpeed() throws Exception {
+		Benchmark.run("marshal, serializable encoding", ITERATIONS, new Benchmark.Op() {
+			@Override
+			public int run() {
+				Parcel p = Parcel.obtain();
+				writeSerializableEncoding(mReport, p);
+				int size = p.dataSize();
+				p.recycle();
+				return size;
+			}
+		});
+		Benchmark.run("marshal, parcel encoding", ITERATIONS, new Benchmark.Op() {
+			@Override
+			public int run() {
+				Parcel p = Parcel.obtain();
+				mReport.writeToParcel(p, 0);
+				int size = p.dataSize();
+				p.recycle();
+				return size;
+			}
+		});
+	}
+
+	public void testUnmarshalSpeed() throws Exception {
+		final Parcel serializable = Parcel.obtain();
+		final Parcel parcel = Parcel.obtain();
+		try {
+			writeSerializableEncoding(mReport, serializable);
+			mReport.writeToParcel(parcel, 0);
+			Benchmark.run("unmarshal, serializable encoding", ITERATIONS, new Benchmark.Op() {
+				@Override
+				public int run() {
+					serializable.setDataPosition(0);
+					return readSerializableEncoding(serializable).hashCode();
+				}
+			});
+			Benchmark.run("unmarshal, parcel encoding", ITERATIONS, new Benchmark.Op() {
+				@Override
+				public int run() {
+					parcel.setDataPosition(0);
+					return Report.CREATOR.createFromParcel(parcel).getForecastCount();
+				}
+			});
+		} finally {
+			serializable.recycle();
+			parcel.recycle();
+		}
+	}
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2010 Dan Walkes, Andy Doan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wakemeski.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the table driven Report.ReportParser with the if/else chain of
+ * String.equals() it replaced, in lines parsed per second and bytes
+ * allocated per report, and measures the heap each report retains
+ */
+public class ReportParserBenchmark extends TestCase {
+
+	private static final int ITERATIONS = 20000;
+
+	/*
+	 * A typical report, with the 4 forecast periods the old parser kept
+	 */
+	private static final String LINES[] = {
+		"location = ALTA",
+		"date = 12-6-2008",
+		"lifts.open = 5",
+		"lifts.total = 10",
+		"trails.open = 80",
+		"trails.total = 116",
+		"trails.percent.open = 69",
+		"snow.total = 60 110",
+		"snow.daily = Fresh(4.3) 48hr(7)",
+		"snow.fresh = 4.3",
+		"snow.units = inches",
+		"snow.conditions = powder",
+		"temp.readings = 41/33 44/38",
+		"wind.avg = 20",
+		"location.latitude = 40.5884",
+		"location.longitude = -111.6386",
+		"location.info = http://www.alta.com",
+		"details.url = http://www.alta.com/conditions",
+		"fresh.source.url = http://www.alta.com/snow",
+		"weather.url = http://forecast.weather.gov/MapClick.php?lat=40.58&lon=-111.63",
+		"weather.icon = http://forecast.weather.gov/images/wtf/sn40.jpg",
+		"weather.forecast.when.0 = Today",
+		"weather.forecast.when-exact.0 = 1228579200",
+		"weather.forecast.desc.0 = Snow, mainly after noon.  High near 28.",
+		"weather.forecast.when.1 = Tonight",
+		"weather.forecast.when-exact.1 = 1228622400",
+		"weather.forecast.desc.1 = Snow.  Low around 15.  New accumulation of 4 to 8 inches.",
+		"weather.forecast.when.2 = Sunday",
+		"weather.forecast.when-exact.2 = 1228665600",
+		"weather.forecast.desc.2 = Snow showers likely.  High near 22.",
+		"weather.forecast.when.3 = Sunday Night",
+		"weather.forecast.when-exact.3 = 1228708800",
+		"weather.forecast.desc.3 = Mostly cloudy, with a low around 10.",
+		"cache.found = 1",
+	};
+
+	private static final Resort RESORT = new Resort("Alta", "report.php?location=ALTA");
+
+	/*
+	 * Number of reports kept to measure the heap each one retains
+	 */
+	private static final int HEAP_REPORTS = 2000;
+
+	/**
+	 * The values the old parser kept for each report
+	 */
+	static class ChainReport {
+		String freshSourceUrl, windAvg, date, detailsUrl, locationUrl, locationComments;
+		String trailsPercentOpen, weatherUrl, weatherIcon, location, latitude, longitude;
+		String snowConditions, errMsgServer, errMsgLocalized, freshSnow, snowUnits;
+		int trailsOpen, trailsTotal, liftsOpen, liftsTotal;
+		ArrayList<String> snowTotals, dailySnow, tempReadings;
+		String when[] = new String[4];
+		long whenExact[] = new long[4];
+		String desc[] = new String[4];
+		String lines[];
+	}
+
+	/**
+	 * The line parser Report.ReportParser replaced: split() and trim() each
+	 * line then compare the key with each known key in turn
+	 */
+	static class ChainParser {
+		private final ChainReport r = new ChainReport();
+		private final ArrayList<String> mLines = new ArrayList<String>();
+
+		private static int getInt(String val) {
+			try {
+				return Integer.parseInt(val);
+			} catch (NumberFormatException nfe) {
+				return -1;
+			}
+		}
+
+		private static ArrayList<String> toList(String values[]) {
+			return new ArrayList<String>(Arrays.asList(values));
+		}
+
+		void parseLine(String line) {
+			mLines.add(line);
+			String parts[] = line.split("=", 2);
+			if (parts.length == 2) {
+				parts[0] = parts[0].trim();
+				parts[1] = parts[1].trim();
+				if (parts[0].equals("fresh.source.url")) {
+					r.freshSourceUrl = parts[1];
+				} else if (parts[0].equals("wind.avg")) {
+					r.windAvg = parts[1];
+				} else if (parts[0].equals("date")) {
+					r.date = parts[1];
+				} else if (parts[0].equals("details.url")) {
+					r.detailsUrl = parts[1];
+				} else if (parts[0].equals("location.info")) {
+					r.locationUrl = parts[1];
+				} else if (parts[0].equals("location.comments")) {
+					r.locationComments = parts[1];
+				} else if (parts[0].equals("trails.open")) {
+					r.trailsOpen = getInt(parts[1]);
+				} else if (parts[0].equals("trails.total")) {
+					r.trailsTotal = getInt(parts[1]);
+				} else if (parts[0].equals("trails.percent.open")) {
+					r.trailsPercentOpen = parts[1];
+				} else if (parts[0].equals("lifts.open")) {
+					r.liftsOpen = getInt(parts[1]);
+				} else if (parts[0].equals("lifts.total")) {
+					r.liftsTotal = getInt(parts[1]);
+				} else if (parts[0].equals("weather.url")) {
+					r.weatherUrl = parts[1];
+				} else if (parts[0].equals("weather.icon")) {
+					r.weatherIcon = parts[1];
+				} else if (parts[0].startsWith("weather.forecast.when.")) {
+					int idx = Integer.parseInt(parts[0].substring(parts[0].length() - 1));
+					if (idx < r.when.length) {
+						r.when[idx] = parts[1];
+					}
+				} else if (parts[0].startsWith("weather.forecast.when-exact.")) {
+					int idx = Integer.parseInt(parts[0].substring(parts[0].length() - 1));
+					if (idx < r.when.length) {
+						r.whenExact[idx] = Long.parseLong(parts[1]);
+					}
+				} else if (parts[0].startsWith("weather.forecast.desc.")) {
+					int idx = Integer.parseInt(parts[0].substring(parts[0].length() - 1));
+					if (idx < r.desc.length) {
+						r.desc[idx] = parts[1];
+					}
+				} else if (parts[0].equals("location")) {
+					r.location = parts[1];
+				} else if (parts[0].equals("location.latitude")) {
+					r.latitude = parts[1];
+				} else if (parts[0].equals("location.longitude")) {
+					r.longitude = parts[1];
+				} else if (parts[0].equals("snow.conditions")) {
+					r.snowConditions = parts[1];
+				} else if (parts[0].equals("err.msg")) {
+					r.errMsgServer = parts[1];
+				} else if (parts[0].equals("err.msg.localized")) {
+					r.errMsgLocalized = parts[1];
+				} else if (parts[0].equals("snow.fresh")) {
+					r.freshSnow = parts[1];
+				} else if (parts[0].equals("snow.units")) {
+					r.snowUnits = parts[1];
+				} else if (parts[0].equals("cache.found")) {
+					// ignored
+				} else {
+					ArrayList<String> vals = toList(parts[1].split("\\s+"));
+					if (parts[0].equals("snow.total")) {
+						r.snowTotals = vals;
+					} else if (parts[0].equals("snow.daily")) {
+						r.dailySnow = vals;
+					} else if (parts[0].equals("temp.readings")) {
+						r.tempReadings = vals;
+					}
+				}
+			}
+		}
+
+		ChainReport finish() {
+			r.lines = mLines.toArray(new String[mLines.size()]);
+			return r;
+		}
+	}
+
+	private static Report parseWithTable() {
+		Report.ReportParser p = new Report.ReportParser(RESORT, "u", null);
+		for (String line : LINES) {
+			p.parseLine(line);
+		}
+		return p.finish(new WakeMeSkiServerInfo());
+	}
+
+	private static ChainReport parseWithChain() {
+		ChainParser p = new ChainParser();
+		for (String line : LINES) {
+			p.parseLine(line);
+		}
+		return p.finish();
+	}
+
+	/**
+	 * Both parsers keep the same values, so the benchmark compares like with like
+	 */
+	public void testParsersAgree() {
+		Report table = parseWithTable();
+		ChainReport chain = parseWithChain();
+		assertEquals(chain.date, table.getDate());
+		assertEquals(chain.liftsOpen, table.getLiftsOpen());
+		assertEquals(chain.liftsTotal, table.getLiftsTotal());
+		assertEquals(chain.snowConditions, table.getSnowConditions());
+		assertEquals(chain.tempReadings, Arrays.asList(table.getTemperatureReadings()));
+		assertEquals(chain.desc.length, table.getForecastCount());
+		for (int i = 0; i < chain.desc.length; i++) {
+			assertEquals(chain.desc[i], table.getForecastDesc(i));
+		}
+	}
+
+	/**
+	 * Measures the heap each Report retains once parsed, while it still holds
+	 * the response lines, and once its values have been read and the lines
+	 * released
+	 */
+	public void testHeapPerReport() throws Exception {
+		Report reports[] = new Report[HEAP_REPORTS];
+		long empty = Benchmark.getUsedHeapBytes();
+		for (int i = 0; i < reports.length; i++) {
+			/*
+			 * Lines read from the network are new strings, unlike the
+			 * literals in LINES
+			 */
+			Report.ReportParser p = new Report.ReportParser(RESORT, "u", null);
+			for (String line : LINES) {
+				p.parseLine(new String(line));
+			}
+			reports[i] = p.finish(new WakeMeSkiServerInfo());
+		}
+		long parsed = Benchmark.getUsedHeapBytes();
+		for (Report r : reports) {
+			r.getDate();
+			assertNull(r.getLines());
+		}
+		long decoded = Benchmark.getUsedHeapBytes();
+		System.out.println("Heap per Report: parsed " + (parsed - empty) / reports.length +
+				" bytes, decoded " + (decoded - empty) / reports.length + " bytes");
+		/*
+		 * Keeps the reports reachable until after the last measurement
+		 */
+		assertEquals("12-6-2008", reports[reports.length - 1].getDate());
+	}
+
+	public void testParseThroughput() throws Exception {
+		Benchmark.Result chain = Benchmark.run("if/else chain parser", ITERATIONS,
+				new Benchmark.Op() {
+					@Override
+					public int run() {
+						return parseWithChain().liftsOpen;
+					}
+				});
+		Benchmark.Result table = Benchmark.run("table driven parser", ITERATIONS,
+				new Benchmark.Op() {
+					@Override
+					public int run() {
+						return parseWithTable().getLiftsOpen();
+					}
+				});
+		System.out.println("Lines/sec: chain " + Math.round(chain.getOpsPerSec() * LINES.length) +
+				", table " + Math.round(table.getOpsPerSec() * LINES.length));
+	}
+}
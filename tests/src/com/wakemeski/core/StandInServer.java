@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2010 Dan Walkes, Andy Doan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wakemeski.core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal HTTP/1.1 server on a local port which stands in for the report
+ * server in tests.
+ *
+ * Connections are kept alive between requests.  Each request is answered with
+ * the lines set with setResponse() for the longest path prefix matching the
+ * request, or with 404 if no prefix matches.
+ */
+class StandInServer {
+
+	private final ServerSocket mServerSocket;
+	private final Hashtable<String, String[]> mResponses = new Hashtable<String, String[]>();
+	private final List<String> mRequestPaths =
+		Collections.synchronizedList(new ArrayList<String>());
+	private final List<Socket> mSockets = Collections.synchronizedList(new ArrayList<Socket>());
+	private final AtomicInteger mConnections = new AtomicInteger();
+	private volatile long mDelayMs = 0;
+
+	StandInServer() throws IOException {
+		mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptConnections();
+			}
+		}, "StandInServer");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * @return the URL of the server, without a trailing /
+	 */
+	String getUrl() {
+		return "http://127.0.0.1:" + mServerSocket.getLocalPort();
+	}
+
+	/**
+	 * Answers requests whose path (including the query string) starts with
+	 * pathPrefix with lines
+	 */
+	void setResponse(String pathPrefix, String... lines) {
+		mResponses.put(pathPrefix, lines);
+	}
+
+	/**
+	 * Waits delayMs before answering each request
+	 */
+	void setDelayMs(long delayMs) {
+		mDelayMs = delayMs;
+	}
+
+	/**
+	 * @return the number of TCP connections accepted
+	 */
+	int getConnectionCount() {
+		return mConnections.get();
+	}
+
+	/**
+	 * @return the number of requests answered
+	 */
+	int getRequestCount() {
+		return mRequestPaths.size();
+	}
+
+	/**
+	 * @return the path and query string of each request, in the order received
+	 */
+	List<String> getRequestPaths() {
+		synchronized (mRequestPaths) {
+			return new ArrayList<String>(mRequestPaths);
+		}
+	}
+
+	void close() throws IOException {
+		mServerSocket.close();
+		synchronized (mSockets) {
+			for (Socket s : mSockets) {
+				s.close();
+			}
+		}
+	}
+
+	private void acceptConnections() {
+		try {
+			while (true) {
+				final Socket s = mServerSocket.accept();
+				mConnections.incrementAndGet();
+				mSockets.add(s);
+				Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						serve(s);
+					}
+				}, "StandInServer-" + mConnections.get());
+				t.setDaemon(true);
+				t.start();
+			}
+		} catch (IOException ioe) {
+			/*
+			 * Closed by close()
+			 */
+		}
+	}
+
+	/**
+	 * Answers requests on one connection until the client closes it
+	 */
+	private void serve(Socket s) {
+		try {
+			BufferedReader in = new BufferedReader(
+					new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+			OutputStream out = s.getOutputStream();
+			String requestLine;
+			while ((requestLine = in.readLine()) != null) {
+				String header;
+				while ((header = in.readLine()) != null && header.length() != 0) {
+					/*
+					 * Headers are ignored
+					 */
+				}
+				String parts[] = requestLine.split(" ");
+				String path = parts.length > 1 ? parts[1] : "/";
+				if (mDelayMs > 0) {
+					Thread.sleep(mDelayMs);
+				}
+				mRequestPaths.add(path);
+				out.write(getResponse(path));
+				out.flush();
+			}
+		} catch (IOException ioe) {
+			/*
+			 * Client went away
+			 */
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				s.close();
+			} catch (IOException ioe) {
+				/*
+				 * Nothing to do
+				 */
+			}
+		}
+	}
+
+	private byte[] getResponse(String path) throws IOException {
+		String lines[] = null;
+		int matched = -1;
+		synchronized (mResponses) {
+			for (String prefix : mResponses.keySet()) {
+				if (path.startsWith(prefix) && prefix.length() > matched) {
+					lines = mResponses.get(prefix);
+					matched = prefix.length();
+				}
+			}
+		}
+		String status = "200 OK";
+		StringBuffer body = new StringBuffer();
+		if (lines == null) {
+			status = "404 Not Found";
+		} else {
+			for (String line : lines) {
+				body.append(line).append('\n');
+			}
+		}
+		byte content[] = body.toString().getBytes("UTF-8");
+		String head = "HTTP/1.1 " + status + "\r\n" +
+			"Content-Type: text/plain; charset=utf-8\r\n" +
+			"Content-Length: " + content.length + "\r\n\r\n";
+		byte headBytes[] = head.getBytes("ISO-8859-1");
+		byte response[] = new byte[headBytes.length + content.length];
+		System.arraycopy(headBytes, 0, response, 0, headBytes.length);
+		System.arraycopy(content, 0, response, headBytes.length, content.length);
+		return response;
+	}
+}
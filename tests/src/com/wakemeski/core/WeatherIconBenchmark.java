@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2010 Dan Walkes, Andy Doan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wakemeski.core;
+
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import com.wakemeski.R;
+
+/**
+ * Compares resolving the weather icon drawable on every row bind, as
+ * getWeatherIconResId() used to, with resolving it once while parsing
+ */
+public class WeatherIconBenchmark extends TestCase {
+
+	private static final int ITERATIONS = 20000;
+
+	/*
+	 * Every NWS icon name the report knows, and two it doesn't
+	 */
+	private static final String ICON_CODES[] = {
+		"nfew", "nsct", "nbkn", "few", "skc", "bkn", "sct", "nskc", "nsn", "sn",
+		"blizzard", "rasn", "nrasn", "raip", "ra", "nra", "nshra", "hi_nshwrs",
+		"hi_shwrs", "shra", "ovc", "novc", "hi_ntsra", "hi_tsra", "nscttsra",
+		"ntsra", "tsra", "scttsra", "mix", "nwind", "wind", "fg", "hot",
+	};
+
+	/*
+	 * Icon URLs as the server sends them, with and without a percentage
+	 * chance of precipitation
+	 */
+	private static final String URLS[] = new String[ICON_CODES.length * 2];
+	static {
+		for (int i = 0; i < ICON_CODES.length; i++) {
+			URLS[i * 2] = "http://forecast.weather.gov/images/wtf/" + ICON_CODES[i] + ".jpg";
+			URLS[i * 2 + 1] = "http://forecast.weather.gov/images/wtf/" + ICON_CODES[i] + "60.jpg";
+		}
+	}
+
+	/*
+	 * The icon map getWeatherIconResId() used to build, kept here as it was
+	 * so the lookups are checked against the original table
+	 */
+	private static final HashMap<String, Integer> OLD_ICONS = new HashMap<String, Integer>();
+	private static void putOldIcons(int resId, String... codes) {
+		for (String code : codes) {
+			OLD_ICONS.put(code, new Integer(resId));
+		}
+	}
+	static {
+		putOldIcons(R.drawable.moon_parly_cloudy, "nfew", "nsct");
+		putOldIcons(R.drawable.moon_mostly_cloudy, "nbkn");
+		putOldIcons(R.drawable.sunny, "few", "skc");
+		putOldIcons(R.drawable.partly_sunny, "bkn", "sct");
+		putOldIcons(R.drawable.moon_clear, "nskc");
+		putOldIcons(R.drawable.snow, "nsn", "sn", "blizzard");
+		putOldIcons(R.drawable.rain_snow, "rasn", "nrasn", "raip");
+		putOldIcons(R.drawable.rain, "ra", "nra", "nshra", "hi_nshwrs", "hi_shwrs", "shra");
+		putOldIcons(R.drawable.cloudy, "ovc", "novc");
+		putOldIcons(R.drawable.rain_lightning, "hi_ntsra", "hi_tsra", "nscttsra", "ntsra", "tsra");
+		putOldIcons(R.drawable.sun_rain, "scttsra");
+		putOldIcons(R.drawable.mix, "mix");
+		putOldIcons(R.drawable.night_wind, "nwind");
+		putOldIcons(R.drawable.wind, "wind");
+	}
+
+	/**
+	 * The lookup getWeatherIconResId() used to make on every call
+	 */
+	private static int oldGetWeatherIconResId(String weatherIcon) {
+		String parts[] = weatherIcon.split("/");
+		String name = parts[parts.length - 1];
+		parts = name.split("\\.");
+		name = parts[0];
+
+		Pattern p = Pattern.compile("(\\d+)");
+		Matcher m = p.matcher(name);
+		if (m.find()) {
+			name = name.substring(0, m.start());
+		}
+
+		Integer i = OLD_ICONS.get(name);
+		if (i != null) {
+			return i.intValue();
+		}
+		return R.drawable.unknown;
+	}
+
+	private static Report newReport(String url) {
+		Report.ReportParser p = new Report.ReportParser(
+				new Resort("Alta", "report.php?location=ALTA"), "u", null);
+		p.parseLine("weather.icon = " + url);
+		return p.finish(new WakeMeSkiServerInfo());
+	}
+
+	/**
+	 * Both lookups give the same drawable for every URL
+	 */
+	public void testLookupsAgree() {
+		for (String url : URLS) {
+			assertEquals(url, oldGetWeatherIconResId(url), Report.getWeatherIconResId(url));
+			assertEquals(url, oldGetWeatherIconResId(url), newReport(url).getWeatherIconResId());
+		}
+	}
+
+	public void testLookupSpeed() throws Exception {
+		final Report reports[] = new Report[URLS.length];
+		for (int i = 0; i < URLS.length; i++) {
+			reports[i] = newReport(URLS[i]);
+		}
+		Benchmark.run("split + Pattern + HashMap, all " + URLS.length + " URLs", ITERATIONS,
+				new Benchmark.Op() {
+					@Override
+					public int run() {
+						int sum = 0;
+						for (String url : URLS) {
+							sum += oldGetWeatherIconResId(url);
+						}
+						return sum;
+					}
+				});
+		Benchmark.run("resolve while parsing, all " + URLS.length + " URLs", ITERATIONS,
+				new Benchmark.Op() {
+					@Override
+					public int run() {
+						int sum = 0;
+						for (String url : URLS) {
+							sum += Report.getWeatherIconResId(url);
+						}
+						return sum;
+					}
+				});
+		Benchmark.run("row bind after parsing, all " + URLS.length + " URLs", ITERATIONS,
+				new Benchmark.Op() {
+					@Override
+					public int run() {
+						int sum = 0;
+						for (Report r : reports) {
+							sum += r.getWeatherIconResId();
+						}
+						return sum;
+					}
+				});
+	}
+}